@@ -33,23 +33,41 @@ package net.indiespot.media;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.PcmRing;
+import net.indiespot.media.impl.PipelineMetrics;
+import net.indiespot.media.impl.Reaper;
 
-import craterstudio.data.ByteList;
-import craterstudio.text.TextValues;
 
 public abstract class AudioRenderer implements Closeable {
 	public static enum State {
 		INIT, BUFFERING, PLAYING, PAUSED, CLOSED;
 	}
 
+	// decoded ahead of playback, so that a stalled ffmpeg is not noticed right away
+	public static float PREFETCH_SECONDS = 1.0f;
+	public static boolean REPORT_UNDERRUNS = false;
+
 	protected AudioStream audioStream;
 	protected float frameRate;
-	private byte[] largest;
 	private final int[] samplesInBuffers = new int[2];
 	protected final ByteBuffer[] bufferDuo = new ByteBuffer[2];
-	private final ByteList bufferIndexList = new ByteList();
 
-	public void init(AudioStream audioStream, float frameRate) {
+	// chunk sizes follow sampleRate/frameRate exactly, in fixed point
+	private static final long RATE_SCALE = 1_000_000L;
+	private long chunkNumerator, chunkDenominator, chunkRemainder;
+
+	private PcmRing ring;
+	private Thread ingest;
+	private volatile int underruns;
+	private PipelineMetrics metrics;
+
+	// the ring goes back to the pool once both the ingest thread and close() are done
+	private final AtomicInteger ringOwners = new AtomicInteger(2);
+
+	public void init(AudioStream audioStream, float frameRate) throws IOException {
 		this.audioStream = audioStream;
 		this.frameRate = frameRate;
 
@@ -60,68 +78,79 @@ public abstract class AudioRenderer implements Closeable {
 			throw new IllegalStateException();
 		}
 
-		samplesInBuffers[0] = (int) Math.floor(this.audioStream.sampleRate / frameRate);
-		samplesInBuffers[1] = (int) Math.ceil(this.audioStream.sampleRate / frameRate);
-		double samplesPerSecond = this.audioStream.sampleRate / (double) frameRate;
-
-		this.calcSyncPattern(samplesPerSecond);
-
-		for (int i = 0; i < bufferDuo.length; i++) {
-			bufferDuo[i] = ByteBuffer.allocateDirect(samplesInBuffers[i] * (this.audioStream.numChannels + this.audioStream.bytesPerSample));
-		}
-
-		if (false) {
-			System.out.println("Audio metadata: " + this.audioStream.sampleRate() + "Hz, " //
-			   + this.audioStream.numChannels + " channels, " //
-			   + (this.audioStream.bytesPerSample * 8) + " bit / sample, " + this.audioStream.sampleCount + " samples");
-		}
-
-		largest = new byte[Math.max(bufferDuo[0].capacity(), bufferDuo[1].capacity())];
-	}
-
-	private void calcSyncPattern(double samplesPerSecond) {
-		double bestHourlyError = Integer.MAX_VALUE;
-		int bestHourlyErrorIndex = -1;
+		chunkNumerator = this.audioStream.sampleRate * RATE_SCALE;
+		chunkDenominator = Math.round(frameRate * (double) RATE_SCALE);
+		chunkRemainder = 0L;
 
-		double prevErr = 1.0;
-		for (int i = 0; i < 10_000; i++) {
-			double currErr = (samplesPerSecond * (i + 1)) % 1.0;
-			int picked = ((currErr > prevErr) ? 0 : 1);
-			prevErr = currErr;
+		samplesInBuffers[0] = (int) (chunkNumerator / chunkDenominator);
+		samplesInBuffers[1] = samplesInBuffers[0] + ((chunkNumerator % chunkDenominator == 0L) ? 0 : 1);
 
-			bufferIndexList.add((byte) picked);
+		ByteBuffer ringBuffer;
+		try {
+			for (int i = 0; i < bufferDuo.length; i++) {
+				bufferDuo[i] = DirectBufferPool.acquire(samplesInBuffers[i] * (this.audioStream.numChannels + this.audioStream.bytesPerSample));
+			}
 
-			double hourlyError = this.calcHourlyError();
-			if (hourlyError < bestHourlyError) {
-				bestHourlyError = hourlyError;
-				bestHourlyErrorIndex = i;
+			int frameSize = this.audioStream.numChannels * this.audioStream.bytesPerSample;
+			int minBytes = 4 * bufferDuo[1].capacity();
+			int prefetchBytes = Math.max(minBytes, (int) (PREFETCH_SECONDS * this.audioStream.sampleRate) * frameSize);
+			ringBuffer = DirectBufferPool.tryAcquire(prefetchBytes);
+			if (ringBuffer == null) {
+				// under memory pressure, settle for less prefetch
+				ringBuffer = DirectBufferPool.acquire(minBytes);
 			}
-			if (hourlyError < 0.01) {
-				break;
+		} catch (IOException exc) {
+			for (int i = 0; i < bufferDuo.length; i++) {
+				if (bufferDuo[i] != null) {
+					DirectBufferPool.release(bufferDuo[i]);
+					bufferDuo[i] = null;
+				}
 			}
+			throw exc;
 		}
-
-		while (bufferIndexList.size() > bestHourlyErrorIndex + 1) {
-			bufferIndexList.removeLast();
-		}
+		final PcmRing ring = new PcmRing(ringBuffer);
+		this.ring = ring;
+		this.ingest = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (ByteBuffer region; (region = ring.acquire()) != null;) {
+						int got = AudioRenderer.this.audioStream.read(region);
+						if (got == -1) {
+							break;
+						}
+						ring.commit(got);
+					}
+				} catch (IOException exc) {
+					// closed, or ffmpeg went away: the samples end here
+				} finally {
+					ring.end();
+					releaseRing(ring);
+				}
+			}
+		}, "audio-ingest");
+		this.ingest.setDaemon(true);
+		this.ingest.setPriority(Thread.MAX_PRIORITY);
+		this.ingest.start();
 
 		if (false) {
-			System.out.println("Audio hourly sync error: " + TextValues.formatNumber(calcHourlyError(), 2) + "sec, using pattern of " + bufferIndexList.size() + " switches");
+			System.out.println("Audio metadata: " + this.audioStream.sampleRate() + "Hz, " //
+			   + this.audioStream.numChannels + " channels, " //
+			   + (this.audioStream.bytesPerSample * 8) + " bit / sample, " + this.audioStream.sampleCount + " samples");
 		}
 	}
 
-	private double calcHourlyError() {
-		int totalSamples = 0;
-		for (int i = 0; i < bufferIndexList.size(); i++) {
-			totalSamples += samplesInBuffers[bufferIndexList.get(i)];
-		}
-
-		double desired = (audioStream.sampleRate / frameRate);
-		double actual = (double) totalSamples / bufferIndexList.size();
-		return (actual - desired) * 3600.0 / audioStream.sampleRate;
+	/**
+	 * Samples in the next chunk, either floor or ceil of the samples per
+	 * frame: the remainder carries over, so there is no drift.
+	 */
+	private int nextChunkSamples() {
+		long total = chunkRemainder + chunkNumerator;
+		int samples = (int) (total / chunkDenominator);
+		chunkRemainder = total - samples * chunkDenominator;
+		return samples;
 	}
 
-	private int loadIndex = 0;
 
 	public abstract State getState();
 
@@ -143,23 +172,100 @@ public abstract class AudioRenderer implements Closeable {
 
 	public abstract boolean tick(Movie sync);
 
+	/**
+	 * Whether the specified number of samples is prefetched, or all that is
+	 * left of the stream
+	 */
+	public boolean isPrefetched(int samples) {
+		int frameSize = this.audioStream.numChannels * this.audioStream.bytesPerSample;
+		boolean ended = ring.isEnded();
+		return ended || ring.available() >= Math.min(ring.capacity(), samples * frameSize);
+	}
+
+	public void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Times loadNextSamples() ran into an empty prefetch buffer
+	 */
+	public int getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * Never blocks: returns the samples that are prefetched, which may be
+	 * fewer than a full buffer, or none at all. Returns null at the end of
+	 * the stream.
+	 */
 	public ByteBuffer loadNextSamples() {
-		try {
-			// switch between big and small buffer
-			ByteBuffer buffer = bufferDuo[bufferIndexList.get(loadIndex++ % bufferIndexList.size())];
-			audioStream.readSamples(largest, 0, buffer.capacity());
+		// switch between big and small buffer
+		ByteBuffer buffer = bufferDuo[(this.nextChunkSamples() == samplesInBuffers[0]) ? 0 : 1];
 
-			buffer.clear();
-			buffer.put(largest, 0, buffer.capacity());
-			buffer.flip();
+		buffer.clear();
+		int got = this.readPrefetched(buffer);
+		buffer.flip();
 
-			return buffer;
-		} catch (IOException exc) {
-			return null;
+		return (got == -1) ? null : buffer;
+	}
+
+	/**
+	 * Copies the prefetched samples into the buffer, never blocks. Falling
+	 * short of the remaining bytes counts as an underrun.
+	 * 
+	 * @return the number of samples copied, or -1 at the end of the stream
+	 */
+	protected int readPrefetched(ByteBuffer dst) {
+		int frameSize = this.audioStream.numChannels * this.audioStream.bytesPerSample;
+		int wanted = dst.remaining() / frameSize;
+
+		boolean ended = ring.isEnded();
+		int got = ring.read(dst, frameSize) / frameSize;
+		if (got == 0 && ended) {
+			return -1;
+		}
+
+		if (got < wanted && !ended) {
+			underruns++;
+			if (metrics != null) {
+				metrics.audioUnderruns.incrementAndGet();
+			}
+			if (REPORT_UNDERRUNS) {
+				System.err.println("AudioRenderer: underrun, got " + got + " of " + wanted + " samples");
+			}
+		}
+		return got;
+	}
+
+	private void releaseRing(PcmRing ring) {
+		if (ringOwners.decrementAndGet() == 0) {
+			DirectBufferPool.release(ring.buffer());
 		}
 	}
 
 	public void close() throws IOException {
-		this.audioStream.close();
+		for (int i = 0; i < bufferDuo.length; i++) {
+			if (bufferDuo[i] != null) {
+				DirectBufferPool.release(bufferDuo[i]);
+				bufferDuo[i] = null;
+			}
+		}
+
+		try {
+			if (this.ring != null) {
+				// the ingest thread is unparked, or its read fails once the stream is closed
+				this.ring.close();
+			}
+			this.audioStream.close();
+		} finally {
+			if (this.ring != null) {
+				Reaper.reap(this.ingest);
+			}
+		}
+
+		if (this.ring != null) {
+			this.releaseRing(this.ring);
+			this.ring = null;
+		}
 	}
 }
\ No newline at end of file
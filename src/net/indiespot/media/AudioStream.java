@@ -32,10 +32,32 @@ package net.indiespot.media;
 
 import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import net.indiespot.media.impl.FFmpeg;
 
 public class AudioStream implements Closeable {
+
+	/**
+	 * 16 bit stereo PCM of the file, decoded as fast as it is read
+	 */
+	public static AudioStream open(File movieFile, double seconds) throws IOException {
+		InputStream wav16Stream = FFmpeg.extractAudioAsWAV(movieFile, seconds);
+		try {
+			return new AudioStream(wav16Stream);
+		} catch (IOException | RuntimeException exc) {
+			wav16Stream.close();
+			throw exc;
+		}
+	}
+
 	public int audioFormat;
 	public int numChannels;
 	public int sampleRate;
@@ -44,6 +66,7 @@ public class AudioStream implements Closeable {
 	public int bytesPerSample;
 
 	public final DataInputStream input;
+	private final ReadableByteChannel channel; // null for dummy samples
 	public int sampleCount;
 
 	public AudioStream() throws IOException {
@@ -53,12 +76,20 @@ public class AudioStream implements Closeable {
 				return 0;
 			}
 
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				Arrays.fill(buf, off, off + len, (byte) 0);
+				return len;
+			}
+
 			@Override
 			public int available() throws IOException {
 				return 1;
 			}
 		});
 
+		this.channel = null;
+
 		this.numChannels = 2;
 		this.sampleRate = 44100;
 		this.blockAlign = 4;
@@ -68,6 +99,19 @@ public class AudioStream implements Closeable {
 
 	public AudioStream(InputStream input) throws IOException {
 		this.input = new DataInputStream(input);
+		this.channel = Channels.newChannel(this.input);
+
+		this.initWAV();
+	}
+
+	/**
+	 * With a FileChannel on a named pipe, samples are read straight into the
+	 * direct buffers of the renderer
+	 */
+	public AudioStream(ReadableByteChannel channel) throws IOException {
+		// unbuffered, so the header is read without consuming samples
+		this.input = new DataInputStream(Channels.newInputStream(channel));
+		this.channel = channel;
 
 		this.initWAV();
 	}
@@ -112,6 +156,13 @@ public class AudioStream implements Closeable {
 		}
 	}
 
+	/**
+	 * Dummy samples, for a movie without audio, see SilentAudioRenderer
+	 */
+	public boolean isSilent() {
+		return channel == null;
+	}
+
 	public int bytesPerSample() {
 		return this.bytesPerSample;
 	}
@@ -135,6 +186,51 @@ public class AudioStream implements Closeable {
 		((DataInputStream) input).readFully(buf, off, len);
 	}
 
+	/**
+	 * Fills the remaining bytes of the buffer
+	 */
+	public void readSamples(ByteBuffer dst) throws IOException {
+		if (dst.remaining() % bytesPerSample != 0) {
+			throw new IllegalStateException();
+		}
+
+		if (channel == null) {
+			while (dst.hasRemaining()) {
+				dst.put((byte) 0);
+			}
+			return;
+		}
+
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Reads what the stream has to offer, -1 at the end
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (channel == null) {
+			int count = dst.remaining();
+			while (dst.hasRemaining()) {
+				dst.put((byte) 0);
+			}
+			return count;
+		}
+		return channel.read(dst);
+	}
+
+	public void skipSamples(long samples) throws IOException {
+		byte[] discard = new byte[4 * 1024];
+		for (long remaining = samples * numChannels * bytesPerSample; remaining > 0;) {
+			int len = (int) Math.min(remaining, discard.length);
+			input.readFully(discard, 0, len);
+			remaining -= len;
+		}
+	}
+
 	public void close() throws IOException {
 		input.close();
 	}
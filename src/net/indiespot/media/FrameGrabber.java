@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.FFmpeg;
+import net.indiespot.media.impl.MetadataCache;
+import net.indiespot.media.impl.VideoMetadata;
+
+/**
+ * Grabs single frames from many files. The timestamps of a file are
+ * grouped into a few ffmpeg processes, which each fast-seek to every
+ * timestamp, and at most PROCESSES of them run at once.
+ */
+public class FrameGrabber {
+	public static int PROCESSES = Runtime.getRuntime().availableProcessors();
+	public static int MAX_FRAMES_PER_PROCESS = 16;
+
+	public static enum Encoding {
+		RGB24, PNG;
+	}
+
+	public static class Grab {
+		public final File file;
+		public final double seconds;
+
+		public int width, height;
+		/**
+		 * rgb24 pixels: on the heap when returned by run(), pooled when
+		 * passed to a listener, which hands them back with
+		 * DirectBufferPool.release()
+		 */
+		public ByteBuffer pixels;
+		/** encoded image */
+		public byte[] image;
+		public IOException error;
+
+		Grab(File file, double seconds) {
+			this.file = file;
+			this.seconds = seconds;
+		}
+	}
+
+	public static interface Listener {
+		/**
+		 * Called on a pool thread, as soon as the frame is available
+		 */
+		public void grabbed(Grab grab);
+	}
+
+	private final int maxWidth, maxHeight;
+	private final Encoding encoding;
+	private final Map<File, List<Grab>> grabs = new LinkedHashMap<>();
+	private final List<Grab> ordered = new ArrayList<>();
+
+	/**
+	 * @param maxWidth
+	 *            frames are scaled down to fit, 0 means unbounded
+	 * @param maxHeight
+	 *            frames are scaled down to fit, 0 means unbounded
+	 */
+	public FrameGrabber(int maxWidth, int maxHeight, Encoding encoding) {
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.encoding = encoding;
+	}
+
+	public Grab add(File movieFile, double seconds) {
+		Grab grab = new Grab(movieFile, seconds);
+		List<Grab> list = grabs.get(movieFile);
+		if (list == null) {
+			grabs.put(movieFile, list = new ArrayList<>());
+		}
+		list.add(grab);
+		ordered.add(grab);
+		return grab;
+	}
+
+	/**
+	 * Blocks until all frames are grabbed, returns them in the order they
+	 * were added. As all of them are held at once, rgb24 pixels are on the
+	 * heap, rather than taken from the off-heap budget.
+	 */
+	public List<Grab> run() throws InterruptedException {
+		this.run(null);
+		return ordered;
+	}
+
+	public void run(final Listener listener) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(PROCESSES);
+		try {
+			for (final List<Grab> list : grabs.values()) {
+				// in file order, so that ffmpeg seeks forward
+				Collections.sort(list, new Comparator<Grab>() {
+					@Override
+					public int compare(Grab a, Grab b) {
+						return Double.compare(a.seconds, b.seconds);
+					}
+				});
+
+				for (int off = 0; off < list.size(); off += MAX_FRAMES_PER_PROCESS) {
+					final List<Grab> group = list.subList(off, Math.min(off + MAX_FRAMES_PER_PROCESS, list.size()));
+					pool.execute(new Runnable() {
+						@Override
+						public void run() {
+							grab(group, listener);
+						}
+					});
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void grab(List<Grab> group, Listener listener) {
+		// a listener consumes the frames as they come, so they can be pooled
+		boolean pooled = (listener != null);
+
+		int done = 0;
+		try {
+			File movieFile = group.get(0).file;
+			VideoMetadata source = MetadataCache.get(movieFile);
+			VideoMetadata metadata = source.scaledToFit(maxWidth, maxHeight);
+			int width = (metadata != source) ? metadata.width : 0;
+			int height = (metadata != source) ? metadata.height : 0;
+
+			double[] seconds = new double[group.size()];
+			for (int i = 0; i < seconds.length; i++) {
+				seconds[i] = group.get(i).seconds;
+				if (source.duration > 0.0) {
+					// a seek past the last frame yields no frame at all, which misaligns the rest
+					seconds[i] = Math.min(seconds[i], source.duration - 1.0 / source.framerate);
+				}
+			}
+
+			InputStream in = FFmpeg.extractFrames(movieFile, seconds, width, height, encoding == Encoding.PNG);
+			try {
+				ReadableByteChannel channel = Channels.newChannel(in);
+				DataInputStream png = new DataInputStream(in);
+
+				for (; done < group.size(); done++) {
+					Grab grab = group.get(done);
+					grab.width = metadata.width;
+					grab.height = metadata.height;
+
+					if (encoding == Encoding.PNG) {
+						grab.image = readPNG(png);
+					} else {
+						grab.pixels = readFrame(channel, metadata.width * metadata.height * 3, pooled);
+					}
+
+					if (listener != null) {
+						listener.grabbed(grab);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException exc) {
+			// an unreadable file, or a failing listener: every grab gets an answer
+			IOException error = (exc instanceof IOException) ? (IOException) exc : new IOException(exc);
+			for (; done < group.size(); done++) {
+				Grab grab = group.get(done);
+				grab.error = error;
+				if (listener != null) {
+					try {
+						listener.grabbed(grab);
+					} catch (RuntimeException listenerExc) {
+						listenerExc.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer readFrame(ReadableByteChannel channel, int frameSize, boolean pooled) throws IOException {
+		ByteBuffer frame = pooled ? DirectBufferPool.acquire(frameSize) : ByteBuffer.allocate(frameSize);
+		try {
+			while (frame.hasRemaining()) {
+				if (channel.read(frame) == -1) {
+					throw new EOFException("no frame");
+				}
+			}
+		} catch (IOException exc) {
+			if (pooled) {
+				DirectBufferPool.release(frame);
+			}
+			throw exc;
+		}
+		frame.flip();
+		return frame;
+	}
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/**
+	 * Reads chunks up to and including IEND, from a stream of PNG images
+	 */
+	private static byte[] readPNG(DataInputStream in) throws IOException {
+		byte[] signature = new byte[PNG_SIGNATURE.length];
+		in.readFully(signature);
+		if (!Arrays.equals(signature, PNG_SIGNATURE)) {
+			throw new IOException("not a PNG stream");
+		}
+
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		image.write(signature);
+
+		byte[] chunk = new byte[8 * 1024];
+		while (true) {
+			int length = in.readInt();
+			byte[] type = new byte[4];
+			in.readFully(type);
+
+			image.write(length >>> 24);
+			image.write(length >>> 16);
+			image.write(length >>> 8);
+			image.write(length);
+			image.write(type);
+
+			for (long remaining = length + 4L /* crc */; remaining > 0;) {
+				int len = (int) Math.min(remaining, chunk.length);
+				in.readFully(chunk, 0, len);
+				image.write(chunk, 0, len);
+				remaining -= len;
+			}
+
+			if (type[0] == 'I' && type[1] == 'E' && type[2] == 'N' && type[3] == 'D') {
+				return image.toByteArray();
+			}
+		}
+	}
+
+	/**
+	 * One PNG image with the frames at the timestamps in a grid, made by a
+	 * single ffmpeg process
+	 */
+	public static byte[] contactSheet(File movieFile, double[] seconds, int columns, int thumbnailWidth) throws IOException {
+		InputStream in = FFmpeg.extractContactSheet(movieFile, seconds, columns, thumbnailWidth);
+		try {
+			return readPNG(new DataInputStream(in));
+		} finally {
+			in.close();
+		}
+	}
+}
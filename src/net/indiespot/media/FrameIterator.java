@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.FFmpeg;
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.MetadataCache;
+import net.indiespot.media.impl.VideoMetadata;
+
+import craterstudio.io.Streams;
+
+/**
+ * Reads decoded frames as fast as ffmpeg produces them, on the calling
+ * thread. Needs no OpenGL context and is not paced by audio.
+ */
+public class FrameIterator implements Closeable {
+
+	public static FrameIterator open(File movieFile, FrameFormat format) throws IOException {
+		return FrameIterator.open(movieFile, 0L, -1L, format);
+	}
+
+	/**
+	 * @param frameCount
+	 *            number of frames to read, or -1 for all remaining frames
+	 */
+	public static FrameIterator open(File movieFile, long firstFrame, long frameCount, FrameFormat format) throws IOException {
+		VideoMetadata metadata = MetadataCache.get(movieFile);
+
+		// half a frame early, so that rounding cannot skip the first frame
+		double seconds = Math.max(0.0, (firstFrame - 0.5) / metadata.framerate);
+
+		ReadableByteChannel channel;
+		if (frameCount < 0L) {
+			channel = FFmpeg.extractVideoChannel(movieFile, seconds, format);
+		} else {
+			channel = FFmpeg.extractVideoSegment(movieFile, seconds, frameCount, format);
+		}
+
+		try {
+			return new FrameIterator(channel, metadata, format, firstFrame);
+		} catch (IOException | RuntimeException exc) {
+			Streams.safeClose(channel);
+			throw exc;
+		}
+	}
+
+	private final ReadableByteChannel channel;
+	private final VideoMetadata metadata;
+	private final FrameFormat format;
+	private final long firstFrame;
+	private ByteBuffer frame;
+	private long frameIndex = -1L;
+
+	public FrameIterator(ReadableByteChannel channel, VideoMetadata metadata, FrameFormat format, long firstFrame) throws IOException {
+		this.channel = channel;
+		this.metadata = metadata;
+		this.format = format;
+		this.firstFrame = firstFrame;
+		this.frame = DirectBufferPool.acquire(format.frameSize(metadata.width, metadata.height));
+	}
+
+	public VideoMetadata metadata() {
+		return metadata;
+	}
+
+	public FrameFormat format() {
+		return format;
+	}
+
+	/**
+	 * Reads the next frame, returns false at the end of the stream
+	 */
+	public boolean next() throws IOException {
+		if (frame == null) {
+			return false;
+		}
+
+		frame.clear();
+		while (frame.hasRemaining()) {
+			if (channel.read(frame) == -1) {
+				return false; // a partial frame is dropped
+			}
+		}
+		frame.flip();
+
+		frameIndex++;
+		return true;
+	}
+
+	/**
+	 * The current frame, valid until the next call to next()
+	 */
+	public ByteBuffer frame() {
+		if (frameIndex < 0L) {
+			throw new IllegalStateException();
+		}
+		return frame.duplicate();
+	}
+
+	/**
+	 * Frame number in the file of the current frame
+	 */
+	public long frameNumber() {
+		return firstFrame + frameIndex;
+	}
+
+	/**
+	 * Time in the file of the current frame
+	 */
+	public double timestamp() {
+		return this.frameNumber() / (double) metadata.framerate;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			if (frame != null) {
+				DirectBufferPool.release(frame);
+				frame = null;
+			}
+		}
+	}
+}
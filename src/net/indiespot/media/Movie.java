@@ -34,42 +34,270 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 import net.indiespot.media.impl.FFmpeg;
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.KeyframeIndex;
+import net.indiespot.media.impl.MetadataCache;
+import net.indiespot.media.impl.PipelineMetrics;
 import net.indiespot.media.impl.VideoMetadata;
+import net.indiespot.media.impl.Y4MChannel;
+
+import craterstudio.io.Streams;
 
 public class Movie implements Closeable {
 
+	/*
+	 * With one ffmpeg process for audio and video, ffmpeg can only write
+	 * audio when it is not blocked on a full video pipe: the video ring must
+	 * cover the audio that is buffered up front, and the audio is read ahead
+	 * on its own thread.
+	 */
+	public static int SINGLE_PROCESS_FRAME_DEPTH = 8;
+	public static int SINGLE_PROCESS_AUDIO_PREFETCH = 512 * 1024;
+
+	/**
+	 * Video frames that are this many frames behind the audio are dropped by
+	 * the pump, before they are copied
+	 */
+	public static int DROP_LATE_FRAMES = 2;
+
 	public static Movie open(File movieFile) throws IOException {
 		return Movie.open(movieFile, 0);
 	}
 
-	public static Movie open(File movieFile, int seconds) throws IOException {
-		VideoMetadata metadata = FFmpeg.extractMetadata(movieFile);
+	public static Movie open(File movieFile, double seconds) throws IOException {
+		return Movie.open(movieFile, seconds, FrameFormat.RGB24);
+	}
+
+	public static Movie open(File movieFile, double seconds, FrameFormat format) throws IOException {
+		return Movie.open(movieFile, seconds, format, 0, 0);
+	}
+
+	/**
+	 * Decodes the video scaled down to fit within the specified size, which
+	 * saves pipe bandwidth, memory and upload time for small viewports. 0
+	 * means unbounded.
+	 */
+	public static Movie open(File movieFile, double seconds, FrameFormat format, int maxWidth, int maxHeight) throws IOException {
+		Seek seek = new Seek(seconds, KeyframeIndex.peek(movieFile));
+
+		if (format == FrameFormat.YUV420P && FFmpeg.FFMPEG_Y4M) {
+			return Movie.openY4M(movieFile, seek, maxWidth, maxHeight);
+		}
+
+		VideoMetadata source = MetadataCache.get(movieFile);
+		VideoMetadata metadata = source.scaledToFit(maxWidth, maxHeight);
+		int width = (metadata != source) ? metadata.width : 0;
+		int height = (metadata != source) ? metadata.height : 0;
+		long skipFrames = seek.framesToSkip(metadata.framerate);
+
+		if (!metadata.hasAudio) {
+			ReadableByteChannel videoChannel = FFmpeg.extractVideoChannel(movieFile, seek.videoStart(), format, seek.fromKeyframe, width, height);
+			VideoStream videoStream = Movie.openVideo(videoChannel, metadata, format, VideoStream.DEFAULT_FRAME_DEPTH, skipFrames, null);
+			return new Movie(metadata, seconds, videoStream, new AudioStream());
+		}
+
+		if (FFmpeg.FFMPEG_SINGLE_PROCESS && FFmpeg.FFMPEG_NAMED_PIPES) {
+			ReadableByteChannel[] pipes = FFmpeg.extractVideoAndAudio(movieFile, seek.videoStart(), format, seek.fromKeyframe, width, height);
+
+			// the video pump must be reading before ffmpeg will open the audio pipe
+			int frameDepth = Math.max(VideoStream.DEFAULT_FRAME_DEPTH, SINGLE_PROCESS_FRAME_DEPTH);
+			VideoStream videoStream = Movie.openVideo(pipes[0], metadata, format, frameDepth, skipFrames, pipes[1]);
+
+			InputStream wav16Stream = FFmpeg.prefetch(Channels.newInputStream(pipes[1]), SINGLE_PROCESS_AUDIO_PREFETCH);
+			AudioStream audioStream;
+			try {
+				audioStream = new AudioStream(wav16Stream);
+
+				// audio started at the keyframe as well
+				audioStream.skipSamples(Math.round((seconds - seek.keyframe) * audioStream.sampleRate));
+			} catch (IOException | RuntimeException exc) {
+				Streams.safeClose(wav16Stream);
+				Streams.safeClose(videoStream);
+				throw exc;
+			}
+			return new Movie(metadata, seconds, videoStream, audioStream);
+		}
+
+		ReadableByteChannel videoChannel = FFmpeg.extractVideoChannel(movieFile, seek.videoStart(), format, seek.fromKeyframe, width, height);
+		ReadableByteChannel audioChannel;
+		try {
+			audioChannel = FFmpeg.extractAudioChannel(movieFile, seconds);
+		} catch (IOException exc) {
+			Streams.safeClose(videoChannel);
+			throw exc;
+		}
+
+		AudioStream audioStream = Movie.openAudio(audioChannel, videoChannel);
+		VideoStream videoStream = Movie.openVideo(videoChannel, metadata, format, VideoStream.DEFAULT_FRAME_DEPTH, skipFrames, audioStream);
+
+		return new Movie(metadata, seconds, videoStream, audioStream);
+	}
+
+	private static Movie openY4M(File movieFile, Seek seek, int maxWidth, int maxHeight) throws IOException {
+		// if the file was probed before, we know whether to bother with audio
+		VideoMetadata cached = MetadataCache.peek(movieFile);
+		boolean hasAudio = (cached == null || cached.hasAudio);
+
+		ReadableByteChannel y4mChannel = FFmpeg.extractVideoAsY4M(movieFile, seek.videoStart(), seek.fromKeyframe, maxWidth, maxHeight);
+		ReadableByteChannel audioChannel = null;
+		Y4MChannel videoChannel;
+		try {
+			if (hasAudio) {
+				audioChannel = FFmpeg.extractAudioChannel(movieFile, seek.seconds);
+			}
+
+			// the stream header describes the video, there is no need to probe
+			videoChannel = Y4MChannel.open(y4mChannel);
+		} catch (IOException | RuntimeException exc) {
+			Streams.safeClose(y4mChannel);
+			if (audioChannel != null) {
+				Streams.safeClose(audioChannel);
+			}
+			throw exc;
+		}
+		VideoMetadata metadata = videoChannel.metadata();
+
+		AudioStream audioStream = hasAudio ? Movie.openAudio(audioChannel, videoChannel) : new AudioStream();
+		VideoStream videoStream = Movie.openVideo(videoChannel, metadata, FrameFormat.YUV420P, VideoStream.DEFAULT_FRAME_DEPTH, seek.framesToSkip(metadata.framerate), audioStream);
+
+		return new Movie(metadata, seek.seconds, videoStream, audioStream);
+	}
+
+	/**
+	 * Opens just the video, scaled to fit within the specified size, starting
+	 * at the specified frame. The audio of a playing movie is unaffected when
+	 * it continues with this stream, see {@link #swapVideo}.
+	 * 
+	 * @param framerate
+	 *            the framerate of the playing movie, so that frame numbers
+	 *            line up with the stream it replaces
+	 */
+	public static VideoStream openVideo(File movieFile, long frame, float framerate, FrameFormat format, int maxWidth, int maxHeight) throws IOException {
+		Seek seek = new Seek(frame / (double) framerate, KeyframeIndex.peek(movieFile));
+
+		if (format == FrameFormat.YUV420P && FFmpeg.FFMPEG_Y4M) {
+			// the same source of dimensions and framerate as openY4M()
+			ReadableByteChannel y4mChannel = FFmpeg.extractVideoAsY4M(movieFile, seek.videoStart(), seek.fromKeyframe, maxWidth, maxHeight);
+			Y4MChannel videoChannel;
+			try {
+				videoChannel = Y4MChannel.open(y4mChannel);
+			} catch (IOException | RuntimeException exc) {
+				Streams.safeClose(y4mChannel);
+				throw exc;
+			}
+			VideoMetadata metadata = videoChannel.metadata();
+			return Movie.openVideo(videoChannel, metadata, format, VideoStream.DEFAULT_FRAME_DEPTH, seek.framesToSkip(metadata.framerate), null);
+		}
+
+		VideoMetadata source = MetadataCache.get(movieFile);
+		VideoMetadata scaled = source.scaledToFit(maxWidth, maxHeight);
+		int width = (scaled != source) ? scaled.width : 0;
+		int height = (scaled != source) ? scaled.height : 0;
+		VideoMetadata metadata = new VideoMetadata(scaled.width, scaled.height, framerate, scaled.duration, scaled.pixelFormat, scaled.audioSampleRate, scaled.audioChannels);
+
+		ReadableByteChannel videoChannel = FFmpeg.extractVideoChannel(movieFile, seek.videoStart(), format, seek.fromKeyframe, width, height);
+		return Movie.openVideo(videoChannel, metadata, format, VideoStream.DEFAULT_FRAME_DEPTH, seek.framesToSkip(framerate), null);
+	}
+
+	/**
+	 * Video decoding starts at the keyframe before the target, the frames in
+	 * between are dropped by the pump. Without a keyframe index, ffmpeg seeks
+	 * as it sees fit.
+	 */
+	static class Seek {
+		// lands on the keyframe despite rounding of its timestamp
+		private static final double KEYFRAME_EPSILON = 0.001;
+
+		final double seconds;
+		final double keyframe;
+		final boolean fromKeyframe;
+
+		Seek(double seconds, KeyframeIndex index) {
+			this(seconds, (index == null) ? seconds : index.floor(seconds), index != null);
+		}
+
+		Seek(double seconds, double keyframe, boolean fromKeyframe) {
+			this.seconds = seconds;
+			this.keyframe = keyframe;
+			this.fromKeyframe = fromKeyframe;
+		}
+
+		double videoStart() {
+			return this.videoStart(FFmpeg.FFMPEG_KEYFRAME_SEEK);
+		}
+
+		/**
+		 * @param keyframeSeek
+		 *            whether ffmpeg is told to seek with -noaccurate_seek
+		 */
+		double videoStart(boolean keyframeSeek) {
+			if (!fromKeyframe) {
+				return seconds;
+			}
+			if (keyframeSeek) {
+				// ffmpeg starts at the keyframe at or before this timestamp
+				return keyframe + KEYFRAME_EPSILON;
+			}
+			// ffmpeg drops every frame before this timestamp, but not the keyframe
+			return Math.max(0.0, keyframe - KEYFRAME_EPSILON);
+		}
 
-		InputStream rgb24Stream = FFmpeg.extractVideoAsRGB24(movieFile, seconds);
-		InputStream wav16Stream = FFmpeg.extractAudioAsWAV(movieFile, seconds);
+		long framesToSkip(float framerate) {
+			if (!fromKeyframe) {
+				return 0L;
+			}
+			return Math.max(0L, Math.round(seconds * framerate) - Math.round(keyframe * framerate));
+		}
+	}
 
-		AudioStream audioStream;
+	/**
+	 * Closes the video channel when the audio cannot be opened for reasons
+	 * other than a missing audio stream
+	 */
+	private static AudioStream openAudio(ReadableByteChannel audioChannel, Closeable videoChannel) throws IOException {
 		try {
-			audioStream = new AudioStream(wav16Stream);
+			return new AudioStream(audioChannel);
 		} catch (IOException exc) {
-			audioStream = new AudioStream(); // no audio, feed in dummy samples
+			Streams.safeClose(audioChannel);
+			return new AudioStream(); // no audio, feed in dummy samples
+		} catch (RuntimeException exc) {
+			Streams.safeClose(audioChannel);
+			Streams.safeClose(videoChannel);
+			throw exc;
 		}
-		VideoStream videoStream = new VideoStream(rgb24Stream, metadata);
+	}
 
-		return new Movie(metadata, videoStream, audioStream);
+	/**
+	 * Closes the channel, and whatever else was opened along with it, when
+	 * the video stream cannot be created
+	 */
+	private static VideoStream openVideo(ReadableByteChannel videoChannel, VideoMetadata metadata, FrameFormat format, int frameDepth, long skipFrames, Closeable companion) throws IOException {
+		try {
+			return new VideoStream(videoChannel, metadata, format, frameDepth, skipFrames);
+		} catch (IOException | RuntimeException exc) {
+			Streams.safeClose(videoChannel);
+			if (companion != null) {
+				Streams.safeClose(companion);
+			}
+			throw exc;
+		}
 	}
 
-	private Movie(VideoMetadata metadata, VideoStream videoStream, AudioStream audioStream) {
+	private Movie(VideoMetadata metadata, double startTime, VideoStream videoStream, AudioStream audioStream) {
 		this.metadata = metadata;
+		this.startTime = startTime;
 		this.videoStream = videoStream;
 		this.audioStream = audioStream;
 	}
 
 	//
 
-	private final VideoMetadata metadata;
+	private VideoMetadata metadata;
+	private final double startTime;
 
 	public int width() {
 		return metadata.width;
@@ -83,38 +311,81 @@ public class Movie implements Closeable {
 		return metadata.framerate;
 	}
 
+	public VideoMetadata metadata() {
+		return metadata;
+	}
+
+	public FrameFormat frameFormat() {
+		return videoStream.format();
+	}
+
 	//
 
-	private final VideoStream videoStream;
+	private VideoStream videoStream;
 	private final AudioStream audioStream;
 
 	public VideoStream videoStream() {
 		return videoStream;
 	}
 
+	/**
+	 * Continues with another video stream, of which the first frame is the
+	 * specified frame, while the audio plays on. Video frames that are late
+	 * by now are dropped by the AV-sync.
+	 */
+	public void swapVideo(VideoStream stream, long firstFrame) {
+		VideoStream old = videoStream;
+		videoStream = stream;
+		videoStream.setPriority(old.getPriority());
+		videoStream.setMetrics(metrics);
+		metadata = stream.metadata();
+		videoBase = (int) (firstFrame - Math.round(startTime * this.framerate()));
+		videoIndex = videoBase;
+		Streams.safeClose(old);
+	}
+
 	public AudioStream audioStream() {
 		return audioStream;
 	}
 
-	//
+	public boolean hasAudio() {
+		return !audioStream.isSilent();
+	}
+
+	/**
+	 * Decoding priority relative to other movies, between
+	 * IngestScheduler.MIN_PRIORITY and MAX_PRIORITY
+	 */
+	public void setPriority(int priority) {
+		videoStream.setPriority(priority);
+	}
+
+	public int getPriority() {
+		return videoStream.getPriority();
+	}
 
-	private long initFrame;
-	private long frameInterval;
+	private PipelineMetrics metrics;
+
+	public void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		videoStream.setMetrics(metrics);
+	}
+
+	//
 
 	public void init() {
-		initFrame = System.nanoTime();
 		audioIndex = 0;
 		videoIndex = 0;
-		frameInterval = (long) (1000_000_000L / metadata.framerate);
 	}
 
 	//
 
-	private static final int AUDIO_UNAVAILABLE = -1;
 	private static final int AUDIO_TERMINATED = -2;
 
 	private int audioIndex;
 	private int videoIndex;
+	private double audioTime = -1.0; // sample-accurate, once the renderer reports it
+	private int videoBase; // video index of the first frame of the video stream
 
 	public int getVideoFrame() {
 		return videoIndex;
@@ -124,8 +395,33 @@ public class Movie implements Closeable {
 		return this.getVideoFrame() / this.framerate();
 	}
 
-	public void onMissingAudio() {
-		audioIndex = AUDIO_UNAVAILABLE;
+	/**
+	 * Time in the file where playback started
+	 */
+	public double startTime() {
+		return startTime;
+	}
+
+	/**
+	 * Time in the file of the current video frame
+	 */
+	public double getPosition() {
+		return startTime + this.getVideoFrame() / (double) this.framerate();
+	}
+
+	/**
+	 * Frame number in the file of the current video frame
+	 */
+	public long getFrameNumber() {
+		return Math.round(startTime * this.framerate()) + this.getVideoFrame();
+	}
+
+	/**
+	 * Frame number in the file of the frame last polled from the video
+	 * stream, which accounts for frames dropped by the pump
+	 */
+	public long getPolledFrameNumber() {
+		return Math.round(startTime * this.framerate()) + videoBase + videoStream.polledFrame();
 	}
 
 	public void onEndOfAudio() {
@@ -140,10 +436,36 @@ public class Movie implements Closeable {
 
 	public void onRenderedAudioBuffer() {
 		this.audioIndex++;
+
+		if (audioTime < 0.0) {
+			videoStream.setLateBefore(audioIndex - DROP_LATE_FRAMES + 1 - videoBase);
+		}
+	}
+
+	/**
+	 * Seconds of audio played since the start of this movie, which
+	 * schedules the video frames by their timestamps
+	 */
+	public void onAudioClock(double seconds) {
+		this.audioTime = seconds;
+
+		int audioFrame = (int) Math.floor(seconds * this.framerate());
+		videoStream.setLateBefore(audioFrame - DROP_LATE_FRAMES + 1 - videoBase);
 	}
 
 	public void onUpdatedVideoFrame() {
-		this.videoIndex++;
+		long polled = videoStream.polledFrame();
+		if (polled < 0L) {
+			this.videoIndex++;
+		} else {
+			// skips the frames that the pump dropped
+			this.videoIndex = videoBase + (int) polled + 1;
+		}
+
+		if (metrics != null && audioTime >= 0.0) {
+			double drift = (videoIndex - 1) / (double) this.framerate() - audioTime;
+			metrics.recordAvDrift((long) (drift * 1_000_000_000L));
+		}
 	}
 
 	public boolean hasVideoBacklogOver(int frameCount) {
@@ -152,12 +474,11 @@ public class Movie implements Closeable {
 				// reached end of audio
 				return false;
 
-			case AUDIO_UNAVAILABLE:
-				// sync video with clock
-				return (videoIndex + frameCount) * frameInterval <= System.nanoTime() - initFrame;
-
 			default:
 				// sync video with audio
+				if (audioTime >= 0.0) {
+					return (videoIndex + frameCount) <= audioTime * this.framerate();
+				}
 				return (videoIndex + frameCount) <= audioIndex;
 		}
 	}
@@ -169,12 +490,11 @@ public class Movie implements Closeable {
 				// reached end of audio
 				return true;
 
-			case AUDIO_UNAVAILABLE:
-				// sync video with clock
-				return videoIndex * frameInterval <= System.nanoTime() - initFrame;
-
 			default:
-				// sync video with audio
+				// sync video with audio: a frame is due once the audio reaches its timestamp
+				if (audioTime >= 0.0) {
+					return videoIndex <= audioTime * this.framerate();
+				}
 				return videoIndex <= audioIndex;
 		}
 	}
@@ -9,28 +9,108 @@ import static org.lwjgl.opengl.GL11.GL_TEXTURE_WRAP_S;
 import static org.lwjgl.opengl.GL11.GL_TEXTURE_WRAP_T;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL20.glDeleteProgram;
+import static org.lwjgl.opengl.GL20.glUseProgram;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import net.indiespot.media.AudioRenderer.State;
+import net.indiespot.media.impl.AudioMixer;
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.FrameCache;
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.KeyframeIndex;
+import net.indiespot.media.impl.MetadataCache;
+import net.indiespot.media.impl.MixedAudioRenderer;
+import net.indiespot.media.impl.PipelineMetrics;
 import net.indiespot.media.impl.OpenALAudioRenderer;
+import net.indiespot.media.impl.SilentAudioRenderer;
+import net.indiespot.media.impl.ThumbnailStrip;
+import net.indiespot.media.impl.VideoMetadata;
+import net.indiespot.media.impl.YUVShader;
 
+import craterstudio.io.Streams;
 import craterstudio.util.RunningAvg;
 import static org.lwjgl.opengl.ARBBufferObject.*;
 import static org.lwjgl.opengl.ARBPixelBufferObject.*;
 
 public class MoviePlayer {
 
+	/**
+	 * Off-heap budget for recently shown frames, which serve frame stepping
+	 * without a seek. Every shown frame is copied, so it is disabled (0) by
+	 * default.
+	 */
+	public static long FRAME_CACHE_BYTES = 0L;
+
+	/*
+	 * A new output size is applied once it has been stable for a while, and
+	 * only if the decoded size changes by more than the threshold. The new
+	 * video stream is opened ahead of the playing frame, audio plays on.
+	 */
+	public static long RENEGOTIATE_DELAY_MILLIS = 250;
+	public static float RENEGOTIATE_THRESHOLD = 0.25f;
+	public static double RENEGOTIATE_LEAD_SECONDS = 0.5;
+
+	/**
+	 * All players share a single OpenAL source, see AudioMixer
+	 */
+	public static boolean MIX_AUDIO = false;
+
+	/**
+	 * Scan for keyframes and decode a thumbnail strip in the background, for
+	 * faster seeks and scrubbing previews. Both cost a full pass over the
+	 * file.
+	 */
+	public static boolean INDEX_KEYFRAMES = false;
+	public static boolean BUILD_THUMBNAILS = false;
+
 	public File movieFile;
 	public Movie movie;
-	public OpenALAudioRenderer audioRenderer;
+	public AudioRenderer audioRenderer;
+	public final PipelineMetrics metrics;
+
+	// the open or seek that awaits its first frame on screen, or 0
+	private long firstFrameFrom;
+	private long seekRequestedAt;
 
 	public MoviePlayer(File movieFile) throws IOException {
+		this(movieFile, false);
+	}
+
+	/**
+	 * @param preferYUV
+	 *            decode to YUV 4:2:0 where shaders are supported, in which case
+	 *            syncTexture() leaves the conversion shader active until
+	 *            unbindTexture() is called
+	 */
+	public MoviePlayer(File movieFile, boolean preferYUV) throws IOException {
 		this.movieFile = movieFile;
+		this.firstFrameFrom = System.nanoTime();
+
+		// the render thread must not stall on the off-heap budget
+		DirectBufferPool.failFastOnCurrentThread();
 
-		movie = Movie.open(movieFile);
+		// YUV 4:2:0 is half the size of RGB24, but needs a shader to convert
+		if (preferYUV && YUVShader.isSupported()) {
+			yuvProgram = YUVShader.createProgram();
+		}
+		frameFormat = (yuvProgram != 0) ? FrameFormat.YUV420P : FrameFormat.RGB24;
+
+		movie = Movie.open(movieFile, 0, frameFormat);
+		metrics = PipelineMetrics.register(movieFile.getName());
+		movie.setMetrics(metrics);
+		if (INDEX_KEYFRAMES) {
+			KeyframeIndex.request(movieFile);
+		}
+		if (BUILD_THUMBNAILS) {
+			ThumbnailStrip.request(movieFile);
+		}
+		seekScheduler = new SeekScheduler(movieFile, frameFormat);
 
 		boolean usePBOs = true;
 		if (usePBOs) {
@@ -39,64 +119,456 @@ public class MoviePlayer {
 			pboHandle = -1;
 		}
 
-		this.init();
+		audioRenderer = MoviePlayer.createAudioRenderer(movie);
+		audioRenderer.init(movie.audioStream(), movie.framerate());
+		audioRenderer.setMetrics(metrics);
+
+		if (FRAME_CACHE_BYTES > 0L) {
+			frameCache = new FrameCache(FRAME_CACHE_BYTES);
+		}
+
+		this.initTextures();
 	}
 
 	public int textureHandle;
+	private int[] textureHandles;
 	private int pboHandle;
+	private final FrameFormat frameFormat;
+	private int yuvProgram;
 
 	private boolean usePBO() {
 		return pboHandle >= 0;
 	}
 
-	private void init() {
-		audioRenderer = new OpenALAudioRenderer();
-		audioRenderer.init(movie.audioStream(), movie.framerate());
-
-		// create texture holding video frame
-		textureHandle = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, textureHandle);
-
-		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-		glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-
-		glTexImage2D(GL_TEXTURE_2D, 0/* level */, GL_RGB, movie.width(), movie.height(), 0/* border */, GL_RGB, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+	private void initTextures() {
+		// create textures holding video frame, one per plane
+		textureHandles = new int[frameFormat.planeCount];
+		for (int plane = 0; plane < textureHandles.length; plane++) {
+			textureHandles[plane] = glGenTextures();
+			glBindTexture(GL_TEXTURE_2D, textureHandles[plane]);
+
+			glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+			glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+			glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+			glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+			int w = frameFormat.planeWidth(plane, movie.width());
+			int h = frameFormat.planeHeight(plane, movie.height());
+			glTexImage2D(GL_TEXTURE_2D, 0/* level */, this.glFormat(), w, h, 0/* border */, this.glFormat(), GL_UNSIGNED_BYTE, (ByteBuffer) null);
+		}
+		textureHandle = textureHandles[0];
 
 		if (usePBO()) {
 			pboHandle = glGenBuffersARB();
 			glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, pboHandle);
-			glBufferDataARB(GL_PIXEL_UNPACK_BUFFER_ARB, movie.width() * movie.height() * 3, GL_STREAM_DRAW_ARB);
+			glBufferDataARB(GL_PIXEL_UNPACK_BUFFER_ARB, this.frameSize(), GL_STREAM_DRAW_ARB);
 			glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, 0);
 		}
 	}
 
-	private int offsetInSeconds;
+	private void destroyTextures() {
+		for (int handle : textureHandles) {
+			glDeleteTextures(handle);
+		}
+		textureHandles = null;
+		textureHandle = 0;
+
+		if (usePBO()) {
+			glDeleteBuffersARB(pboHandle);
+			pboHandle = 0;
+		}
+	}
+
+	private int glFormat() {
+		return (frameFormat == FrameFormat.RGB24) ? GL_RGB : GL_LUMINANCE;
+	}
 
-	public void relativeSeek(int seconds) throws IOException {
-		seconds = offsetInSeconds + (int) movie.getPlayingTime() + seconds;
-		this.absoluteSeek(Math.max(0, seconds));
+	private int frameSize() {
+		return frameFormat.frameSize(movie.width(), movie.height());
 	}
 
-	public void absoluteSeek(int seconds) throws IOException {
-		this.offsetInSeconds = seconds;
+	public FrameFormat frameFormat() {
+		return frameFormat;
+	}
 
-		// audioRenderer.await();
-		audioRenderer.close();
-		audioRenderer = null;
+	/**
+	 * Binds the video texture, in YUV mode the planes are bound to texture
+	 * units 0..2 and the conversion shader is activated
+	 */
+	public void bindTexture() {
+		if (yuvProgram == 0) {
+			glBindTexture(GL_TEXTURE_2D, textureHandle);
+			return;
+		}
 
-		movie.close();
-		movie = null;
-		movie = Movie.open(movieFile, seconds);
+		for (int plane = textureHandles.length - 1; plane >= 0; plane--) {
+			glActiveTexture(GL_TEXTURE0 + plane);
+			glBindTexture(GL_TEXTURE_2D, textureHandles[plane]);
+		}
+		glUseProgram(yuvProgram);
+	}
+
+	public void unbindTexture() {
+		if (yuvProgram != 0) {
+			glUseProgram(0);
+		}
+	}
+
+	private void uploadPlanes(ByteBuffer frame) {
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+		for (int plane = 0; plane < textureHandles.length; plane++) {
+			int w = frameFormat.planeWidth(plane, movie.width());
+			int h = frameFormat.planeHeight(plane, movie.height());
+			int offset = frameFormat.planeOffset(plane, movie.width(), movie.height());
+
+			if (yuvProgram != 0) {
+				glActiveTexture(GL_TEXTURE0 + plane);
+			}
+			glBindTexture(GL_TEXTURE_2D, textureHandles[plane]);
+
+			if (frame == null) {
+				// from the bound PBO
+				glTexSubImage2D(GL_TEXTURE_2D, 0/* level */, 0, 0, w, h, this.glFormat(), GL_UNSIGNED_BYTE, offset);
+			} else {
+				frame.limit(offset + frameFormat.planeSize(plane, movie.width(), movie.height()));
+				frame.position(offset);
+				glTexSubImage2D(GL_TEXTURE_2D, 0/* level */, 0, 0, w, h, this.glFormat(), GL_UNSIGNED_BYTE, frame);
+			}
+		}
+
+		if (yuvProgram != 0) {
+			glActiveTexture(GL_TEXTURE0);
+		}
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	private final SeekScheduler seekScheduler;
+	private double seekTarget = Double.NaN;
+
+	public void relativeSeek(double seconds) throws IOException {
+		// relative to where we are heading, when scrubbing
+		double position = Double.isNaN(seekTarget) ? movie.getPosition() : seekTarget;
+		this.absoluteSeek(Math.max(0.0, position + seconds));
+	}
+
+	public void seekToFrame(long frame) throws IOException {
+		this.absoluteSeek(Math.max(0L, frame) / (double) movie.framerate());
+	}
+
+	/**
+	 * Returns immediately: the movie is reopened in the background, while the
+	 * current frame stays on screen
+	 */
+	public void absoluteSeek(double seconds) throws IOException {
+		this.requestSeek(seconds);
+	}
+
+	private void requestSeek(double seconds) {
+		if (Double.isNaN(seekTarget)) {
+			audioRenderer.pause();
+			seekRequestedAt = System.nanoTime();
+		}
+		if (renegotiation != null) {
+			// the seek opens at the new output size
+			renegotiation.cancel();
+			renegotiation = null;
+		}
+		seekTarget = seconds;
+		seekScheduler.request(seconds);
+	}
+
+	public boolean isSeeking() {
+		return !Double.isNaN(seekTarget);
+	}
+
+	/**
+	 * Previews for a scrub bar, null until decoding has started (see
+	 * BUILD_THUMBNAILS) or when no strip was persisted earlier
+	 */
+	public ThumbnailStrip thumbnails() throws IOException {
+		return ThumbnailStrip.peek(movieFile);
+	}
+
+	private void adoptSeekedMovie() {
+		if (Double.isNaN(seekTarget)) {
+			return;
+		}
+
+		SeekScheduler.Pipeline pipeline = seekScheduler.poll();
+		if (pipeline == null) {
+			return;
+		}
+		seekTarget = Double.NaN;
+
+		if (pipeline.isFailed()) {
+			// carry on with the movie we have, the seek already reported why
+			if (!stepping) {
+				audioRenderer.resume();
+			}
+			return;
+		}
+		metrics.seekLatency.record(System.nanoTime() - seekRequestedAt);
+		firstFrameFrom = seekRequestedAt;
+
+		Movie oldMovie = movie;
+		AudioRenderer oldAudioRenderer = audioRenderer;
+
+		movie = pipeline.movie;
+		movie.setPriority(oldMovie.getPriority());
+		movie.setMetrics(metrics);
+		audioRenderer = pipeline.audioRenderer;
+		audioRenderer.setVolume(oldAudioRenderer.getVolume());
+		audioRenderer.setMetrics(metrics);
+		if (stepping) {
+			audioRenderer.pause();
+		}
+
+		Streams.safeClose(oldAudioRenderer);
+		Streams.safeClose(oldMovie);
+
+		if (movie.width() != oldMovie.width() || movie.height() != oldMovie.height()) {
+			this.destroyTextures();
+			this.initTextures();
+			if (frameCache != null) {
+				frameCache.clear();
+			}
+		}
+	}
+
+	//
+
+	private FrameCache frameCache;
+	private long shownFrame = -1L;
+	private boolean stepping;
+	private boolean pendingStep;
+
+	/**
+	 * Pauses playback and shows the next frame
+	 */
+	public void stepForward() throws IOException {
+		this.stepTo(shownFrame + 1L);
+	}
+
+	/**
+	 * Pauses playback and shows the previous frame, from memory when it was
+	 * shown recently
+	 */
+	public void stepBackward() throws IOException {
+		if (shownFrame > 0L) {
+			this.stepTo(shownFrame - 1L);
+		}
+	}
+
+	public boolean isStepping() {
+		return stepping;
+	}
+
+	private void stepTo(long frame) throws IOException {
+		if (!stepping) {
+			stepping = true;
+			audioRenderer.pause();
+		}
 
-		this.init();
+		ByteBuffer cached = (frameCache == null) ? null : frameCache.get(frame);
+		if (cached != null) {
+			pendingStep = false;
+			this.bindTexture();
+			this.uploadFrame(cached);
+			shownFrame = frame;
+			return;
+		}
+
+		pendingStep = true;
+		if (this.isSeeking() || movie.getFrameNumber() != frame) {
+			this.seekToFrame(frame);
+		}
+	}
+
+	private boolean syncSteppedTexture() {
+		if (!pendingStep) {
+			return true;
+		}
+
+		ByteBuffer texBuffer = movie.videoStream().pollFrameData();
+		if (texBuffer == VideoStream.EOF) {
+			pendingStep = false;
+			return true;
+		}
+		if (texBuffer == null) {
+			return true;
+		}
+
+		this.cacheFrame(texBuffer);
+		this.uploadFrame(texBuffer);
+		movie.videoStream().freeFrameData(texBuffer);
+		movie.onUpdatedVideoFrame();
+		pendingStep = false;
+		return true;
+	}
+
+	private void cacheFrame(ByteBuffer frame) {
+		shownFrame = movie.getPolledFrameNumber();
+		if (frameCache != null) {
+			frameCache.put(shownFrame, frame);
+		}
+	}
+
+	//
+
+	private int maxWidth, maxHeight;
+	private long outputSizeChanged;
+	private Renegotiation renegotiation;
+
+	/**
+	 * Decodes the video scaled down to fit within the specified size, for
+	 * example the viewport. 0 means unbounded.
+	 */
+	public void setOutputSize(int maxWidth, int maxHeight) {
+		if (maxWidth == this.maxWidth && maxHeight == this.maxHeight) {
+			return;
+		}
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.outputSizeChanged = System.currentTimeMillis();
+		seekScheduler.outputSize(maxWidth, maxHeight);
+	}
+
+	private void renegotiate() {
+		if (renegotiation != null) {
+			if (!renegotiation.isDone()) {
+				return;
+			}
+			VideoStream stream = renegotiation.stream();
+			if (stream == null) {
+				renegotiation = null; // not worth it, or failed
+				return;
+			}
+			if (movie.getFrameNumber() < renegotiation.firstFrame) {
+				return;
+			}
+
+			int oldWidth = movie.width();
+			int oldHeight = movie.height();
+			movie.swapVideo(stream, renegotiation.firstFrame);
+			renegotiation = null;
+
+			if (movie.width() != oldWidth || movie.height() != oldHeight) {
+				this.destroyTextures();
+				this.initTextures();
+				if (frameCache != null) {
+					frameCache.clear();
+				}
+			}
+			return;
+		}
+
+		if (outputSizeChanged == 0L || System.currentTimeMillis() - outputSizeChanged < RENEGOTIATE_DELAY_MILLIS) {
+			return;
+		}
+		if (this.isSeeking() || stepping) {
+			return; // picked up later
+		}
+		outputSizeChanged = 0L;
+
+		long firstFrame = movie.getFrameNumber() + Math.round(RENEGOTIATE_LEAD_SECONDS * movie.framerate());
+		renegotiation = new Renegotiation(movieFile, frameFormat, firstFrame, movie.framerate(), maxWidth, maxHeight, movie.width());
+		Thread thread = new Thread(renegotiation, "movie-renegotiate");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static class Renegotiation implements Runnable {
+		final File movieFile;
+		final FrameFormat format;
+		final long firstFrame;
+		final float framerate;
+		final int maxWidth, maxHeight;
+		final int currentWidth;
+
+		private VideoStream stream;
+		private boolean done;
+		private boolean cancelled;
+
+		Renegotiation(File movieFile, FrameFormat format, long firstFrame, float framerate, int maxWidth, int maxHeight, int currentWidth) {
+			this.movieFile = movieFile;
+			this.format = format;
+			this.firstFrame = firstFrame;
+			this.framerate = framerate;
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.currentWidth = currentWidth;
+		}
+
+		@Override
+		public void run() {
+			VideoStream opened = null;
+			try {
+				VideoMetadata target = MetadataCache.get(movieFile).scaledToFit(maxWidth, maxHeight);
+				if (Math.abs(target.width - currentWidth) > currentWidth * RENEGOTIATE_THRESHOLD) {
+					opened = Movie.openVideo(movieFile, firstFrame, framerate, format, maxWidth, maxHeight);
+				}
+			} catch (IOException exc) {
+				exc.printStackTrace();
+			}
+
+			synchronized (this) {
+				if (cancelled && opened != null) {
+					Streams.safeClose(opened);
+					opened = null;
+				}
+				stream = opened;
+				done = true;
+			}
+		}
+
+		synchronized boolean isDone() {
+			return done;
+		}
+
+		synchronized VideoStream stream() {
+			return stream;
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (stream != null) {
+				Streams.safeClose(stream);
+				stream = null;
+			}
+		}
+	}
+
+	/**
+	 * Movies without audio are timed by a clock, rather than by silence
+	 * played through OpenAL. Audio that the mixer cannot take without
+	 * resampling gets a source of its own, see FFmpeg.FFMPEG_AUDIO_RATE.
+	 */
+	static AudioRenderer createAudioRenderer(Movie movie) {
+		if (!movie.hasAudio()) {
+			return new SilentAudioRenderer();
+		}
+		if (MIX_AUDIO && movie.audioStream().sampleRate == AudioMixer.SAMPLE_RATE) {
+			return new MixedAudioRenderer();
+		}
+		return new OpenALAudioRenderer();
 	}
 
 	public void tick() {
+		this.adoptSeekedMovie();
+		this.renegotiate();
+
 		audioRenderer.tick(movie);
 	}
 
+	/**
+	 * Decoding priority relative to other players, background players only
+	 * decode ahead when the foreground players are buffered
+	 */
+	public void setPriority(int priority) {
+		movie.setPriority(priority);
+	}
+
 	public AudioRenderer audio() {
 		return audioRenderer;
 	}
@@ -114,6 +586,14 @@ public class MoviePlayer {
 	}
 
 	public void resume() {
+		if (stepping) {
+			// the audio is wherever it was paused, pick up after the shown frame,
+			// a failed reopen resumes the movie we have (see adoptSeekedMovie)
+			stepping = false;
+			pendingStep = false;
+			this.requestSeek((shownFrame + 1L) / (double) movie.framerate());
+			return;
+		}
 		audioRenderer.resume();
 	}
 
@@ -122,17 +602,40 @@ public class MoviePlayer {
 	}
 
 	public void close() throws IOException {
-		glDeleteTextures(textureHandle);
-		textureHandle = 0;
+		seekScheduler.close();
+		if (renegotiation != null) {
+			renegotiation.cancel();
+			renegotiation = null;
+		}
+
+		this.destroyTextures();
+		if (yuvProgram != 0) {
+			glDeleteProgram(yuvProgram);
+			yuvProgram = 0;
+		}
+
+		if (frameCache != null) {
+			frameCache.clear();
+		}
 
 		audioRenderer.close();
 		movie.close();
+		metrics.unregister();
 	}
 
 	public RunningAvg textureUpdateTook = new RunningAvg(20);
 
 	public boolean syncTexture(int maxFramesBacklog) {
-		glBindTexture(GL_TEXTURE_2D, textureHandle);
+		this.adoptSeekedMovie();
+		this.bindTexture();
+
+		if (this.isSeeking()) {
+			// keep showing the last frame
+			return true;
+		}
+		if (stepping) {
+			return this.syncSteppedTexture();
+		}
 
 		ByteBuffer texBuffer = null;
 
@@ -160,36 +663,46 @@ public class MoviePlayer {
 			} while (movie.hasVideoBacklogOver(maxFramesBacklog));
 
 			if (framesRead > 1) {
-				System.out.println("video frames skipped: " + (framesRead - 1));
+				metrics.framesSkipped.addAndGet(framesRead - 1);
 			}
 
-			{
-				long tStart = System.nanoTime();
+			this.cacheFrame(texBuffer);
+			this.uploadFrame(texBuffer);
 
-				if (usePBO()) {
-					glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, pboHandle);
+			movie.videoStream().freeFrameData(texBuffer);
+			texBuffer = null;
 
-					ByteBuffer mapped = glMapBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, GL_WRITE_ONLY_ARB, movie.width() * movie.height() * 3, null);
-					mapped.put(texBuffer);
-					glUnmapBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB);
+			// signal the AV-sync that we processed a frame
+			movie.onUpdatedVideoFrame();
+		}
 
-					glTexSubImage2D(GL_TEXTURE_2D, 0/* level */, 0, 0, movie.width(), movie.height(), GL_RGB, GL_UNSIGNED_BYTE, 0);
+		return true;
+	}
 
-					glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, 0);
-				} else {
-					glTexSubImage2D(GL_TEXTURE_2D, 0/* level */, 0, 0, movie.width(), movie.height(), GL_RGB, GL_UNSIGNED_BYTE, texBuffer);
-				}
+	private void uploadFrame(ByteBuffer texBuffer) {
+		long tStart = System.nanoTime();
 
-				textureUpdateTook.add(System.nanoTime() - tStart);
+		if (usePBO()) {
+			glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, pboHandle);
 
-				movie.videoStream().freeFrameData(texBuffer);
-				texBuffer = null;
-			}
+			ByteBuffer mapped = glMapBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, GL_WRITE_ONLY_ARB, this.frameSize(), null);
+			mapped.put(texBuffer);
+			glUnmapBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB);
 
-			// signal the AV-sync that we processed a frame
-			movie.onUpdatedVideoFrame();
+			this.uploadPlanes(null);
+
+			glBindBufferARB(GL_PIXEL_UNPACK_BUFFER_ARB, 0);
+		} else {
+			this.uploadPlanes(texBuffer);
 		}
 
-		return true;
+		long tEnd = System.nanoTime();
+		textureUpdateTook.add(tEnd - tStart);
+		metrics.textureUpload.record(tEnd - tStart);
+
+		if (firstFrameFrom != 0L) {
+			metrics.timeToFirstFrame.record(tEnd - firstFrameFrom);
+			firstFrameFrom = 0L;
+		}
 	}
 }
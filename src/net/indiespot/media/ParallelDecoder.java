@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.MetadataCache;
+import net.indiespot.media.impl.VideoMetadata;
+
+/**
+ * Splits a file into time ranges, each decoded by its own ffmpeg process,
+ * for batch processing that scales with the number of cores.
+ * 
+ * Each segment is handled on a fork-join worker, in frame order. The
+ * results of the segments are merged in file order. When a segment fails,
+ * the others stop at their next frame.
+ */
+public class ParallelDecoder {
+	public static int DEFAULT_SEGMENTS = Runtime.getRuntime().availableProcessors();
+
+	// shorter segments spend more time seeking than decoding
+	public static int MIN_SEGMENT_FRAMES = 250;
+
+	public static interface FrameHandler<T> {
+		/**
+		 * Creates the state of a segment
+		 */
+		public T begin(long firstFrame);
+
+		/**
+		 * Called for every frame of a segment, in order. Segments are handled
+		 * concurrently. The frame is only valid during the call.
+		 */
+		public void frame(T state, long frameNumber, double timestamp, ByteBuffer frame) throws IOException;
+
+		/**
+		 * Combines the results of two adjacent segments
+		 */
+		public T merge(T earlier, T later);
+	}
+
+	public static <T> T decode(File movieFile, FrameFormat format, FrameHandler<T> handler) throws IOException {
+		return ParallelDecoder.decode(movieFile, format, DEFAULT_SEGMENTS, handler);
+	}
+
+	public static <T> T decode(File movieFile, FrameFormat format, int segments, FrameHandler<T> handler) throws IOException {
+		VideoMetadata metadata = MetadataCache.get(movieFile);
+
+		if (metadata.frameCount <= 0L) {
+			// unknown length, decode it in one go
+			return new Segment<>(movieFile, format, handler, new long[] { 0L, -1L }, 0, 1, new AtomicBoolean()).compute();
+		}
+
+		// every segment holds a frame, they must not take more than half the off-heap budget
+		long frameSize = format.frameSize(metadata.width, metadata.height);
+		long affordable = DirectBufferPool.getBudget() / 2 / frameSize;
+		segments = (int) Math.max(1L, Math.min(Math.min(segments, affordable), metadata.frameCount / MIN_SEGMENT_FRAMES));
+		long[] bounds = new long[segments + 1];
+		for (int i = 0; i <= segments; i++) {
+			bounds[i] = metadata.frameCount * i / segments;
+		}
+		// the frame count is estimated from the duration, the last segment reads to the end
+		bounds[segments] = -1L;
+
+		ForkJoinPool pool = new ForkJoinPool(segments);
+		try {
+			return pool.invoke(new Segment<>(movieFile, format, handler, bounds, 0, segments, new AtomicBoolean()));
+		} catch (SegmentException exc) {
+			throw exc.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static class Segment<T> extends RecursiveTask<T> {
+		private static final long serialVersionUID = 1L;
+
+		private final File movieFile;
+		private final FrameFormat format;
+		private final FrameHandler<T> handler;
+		private final long[] bounds;
+		private final int lo, hi;
+		private final AtomicBoolean failed; // shared by all segments of a run
+
+		Segment(File movieFile, FrameFormat format, FrameHandler<T> handler, long[] bounds, int lo, int hi, AtomicBoolean failed) {
+			this.movieFile = movieFile;
+			this.format = format;
+			this.handler = handler;
+			this.bounds = bounds;
+			this.lo = lo;
+			this.hi = hi;
+			this.failed = failed;
+		}
+
+		@Override
+		protected T compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				Segment<T> later = new Segment<>(movieFile, format, handler, bounds, mid, hi, failed);
+				later.fork();
+				T earlier;
+				try {
+					earlier = new Segment<>(movieFile, format, handler, bounds, lo, mid, failed).compute();
+				} catch (RuntimeException exc) {
+					failed.set(true);
+					throw exc;
+				}
+				T laterState = later.join();
+				if (failed.get()) {
+					return null; // cut short, the failure is thrown elsewhere
+				}
+				return handler.merge(earlier, laterState);
+			}
+
+			if (failed.get()) {
+				return null;
+			}
+
+			long firstFrame = bounds[lo];
+			long frameCount = (bounds[hi] < 0L) ? -1L : bounds[hi] - firstFrame;
+
+			T state = handler.begin(firstFrame);
+			try {
+				FrameIterator frames = FrameIterator.open(movieFile, firstFrame, frameCount, format);
+				try {
+					// stops the ffmpeg process of this segment as soon as another one failed
+					while (!failed.get() && frames.next()) {
+						handler.frame(state, frames.frameNumber(), frames.timestamp(), frames.frame());
+					}
+				} finally {
+					frames.close();
+				}
+			} catch (IOException exc) {
+				failed.set(true);
+				throw new SegmentException(exc);
+			} catch (RuntimeException exc) {
+				failed.set(true);
+				throw exc;
+			}
+			return state;
+		}
+	}
+
+	private static class SegmentException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		SegmentException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.Reaper;
+
+import craterstudio.io.Streams;
+
+/**
+ * Opens movies for seeks on a background thread. Seek requests that arrive
+ * while a pipeline is being opened are coalesced: only the latest target is
+ * opened next, and pipelines that were superseded are closed right away.
+ * An open that is still in flight is abandoned between its steps, the
+ * worker is not interrupted: that would close the channels of the metadata
+ * cache under its feet.
+ */
+class SeekScheduler {
+	static class Pipeline {
+		final double target;
+		final Movie movie;
+		final AudioRenderer audioRenderer;
+		final Exception error; // the open failed, there is no movie
+
+		Pipeline(double target, Movie movie, AudioRenderer audioRenderer) {
+			this.target = target;
+			this.movie = movie;
+			this.audioRenderer = audioRenderer;
+			this.error = null;
+		}
+
+		Pipeline(double target, Exception error) {
+			this.target = target;
+			this.movie = null;
+			this.audioRenderer = null;
+			this.error = error;
+		}
+
+		boolean isFailed() {
+			return error != null;
+		}
+
+		void close() {
+			if (audioRenderer != null) {
+				Streams.safeClose(audioRenderer);
+			}
+			if (movie != null) {
+				Streams.safeClose(movie);
+			}
+		}
+	}
+
+	private final File movieFile;
+	private final FrameFormat format;
+	private final Object lock = new Object();
+
+	private double pendingTarget;
+	private boolean hasPending;
+	private boolean busy;
+	private Pipeline ready;
+	private boolean closed;
+	private final Thread worker;
+	private volatile int maxWidth, maxHeight;
+
+	SeekScheduler(File movieFile, FrameFormat format) {
+		this.movieFile = movieFile;
+		this.format = format;
+
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (runNext()) {
+					continue;
+				}
+			}
+		}, "movie-seek");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public void request(double seconds) {
+		Pipeline stale;
+		synchronized (lock) {
+			pendingTarget = seconds;
+			hasPending = true;
+
+			stale = ready;
+			ready = null;
+
+			lock.notifyAll();
+		}
+
+		if (stale != null) {
+			stale.close();
+		}
+	}
+
+	/**
+	 * Applies to seeks that are opened from now on
+	 */
+	public void outputSize(int maxWidth, int maxHeight) {
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+	}
+
+	public boolean isSeeking() {
+		synchronized (lock) {
+			return hasPending || busy || ready != null;
+		}
+	}
+
+	/**
+	 * Returns the opened pipeline once it can show its first frame, or the
+	 * failed pipeline right away
+	 */
+	public Pipeline poll() {
+		synchronized (lock) {
+			if (ready == null || (!ready.isFailed() && !ready.movie.videoStream().isFrameAvailable())) {
+				return null;
+			}
+			Pipeline pipeline = ready;
+			ready = null;
+			return pipeline;
+		}
+	}
+
+	private boolean isSuperseded() {
+		synchronized (lock) {
+			return hasPending || closed;
+		}
+	}
+
+	private boolean runNext() {
+		double target;
+		synchronized (lock) {
+			while (!hasPending && !closed) {
+				try {
+					lock.wait();
+				} catch (InterruptedException exc) {
+					// reaped by close()
+				}
+			}
+			if (closed) {
+				return false;
+			}
+
+			target = pendingTarget;
+			hasPending = false;
+			busy = true;
+		}
+
+		Pipeline pipeline = null;
+		try {
+			Movie movie = Movie.open(movieFile, target, format, maxWidth, maxHeight);
+			if (this.isSuperseded()) {
+				// a newer target, no need to set up the audio of this one
+				Streams.safeClose(movie);
+				synchronized (lock) {
+					busy = false;
+				}
+				return true;
+			}
+
+			AudioRenderer audioRenderer = MoviePlayer.createAudioRenderer(movie);
+			try {
+				// does not touch OpenAL until the first tick
+				audioRenderer.init(movie.audioStream(), movie.framerate());
+			} catch (IOException | RuntimeException exc) {
+				Streams.safeClose(movie);
+				throw exc;
+			}
+			pipeline = new Pipeline(target, movie, audioRenderer);
+		} catch (IOException | RuntimeException exc) {
+			if (!this.isSuperseded()) {
+				exc.printStackTrace();
+			}
+
+			// the player must hear about it, or it keeps waiting for the seek
+			pipeline = new Pipeline(target, exc);
+		}
+
+		Pipeline superseded = null;
+		synchronized (lock) {
+			busy = false;
+
+			if (hasPending || closed) {
+				// latest wins
+				superseded = pipeline;
+			} else {
+				ready = pipeline;
+			}
+		}
+
+		if (superseded != null) {
+			superseded.close();
+		}
+		return true;
+	}
+
+	public void close() {
+		Pipeline stale;
+		synchronized (lock) {
+			closed = true;
+			hasPending = false;
+
+			stale = ready;
+			ready = null;
+
+			lock.notifyAll();
+		}
+
+		if (stale != null) {
+			stale.close();
+		}
+		Reaper.reap(worker);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media;
+
+/**
+ * Checks that a seek from a keyframe lands on the requested frame, with and
+ * without -noaccurate_seek, against a model of where ffmpeg starts.
+ */
+public class SeekTest {
+	public static void main(String[] args) {
+		for (boolean keyframeSeek : new boolean[] { true, false }) {
+			check(keyframeSeek, 25.0f, 2.0, 2.4);
+			check(keyframeSeek, 25.0f, 2.0, 2.0);
+			check(keyframeSeek, 25.0f, 0.0, 0.52);
+			check(keyframeSeek, 23.976f, 4.171, 5.0);
+			check(keyframeSeek, 59.94f, 10.010, 10.5);
+		}
+		System.out.println("SeekTest: ok");
+	}
+
+	private static void check(boolean keyframeSeek, float framerate, double keyframe, double seconds) {
+		Movie.Seek seek = new Movie.Seek(seconds, keyframe, true);
+
+		long firstFrame;
+		if (keyframeSeek) {
+			// starts at the keyframe at or before the timestamp
+			firstFrame = Math.round(keyframe * framerate);
+		} else {
+			// starts at the first frame at or after the timestamp
+			firstFrame = (long) Math.ceil(seek.videoStart(false) * framerate);
+		}
+
+		long landed = firstFrame + seek.framesToSkip(framerate);
+		long expected = Math.round(seconds * framerate);
+		if (landed != expected) {
+			throw new IllegalStateException((keyframeSeek ? "keyframe" : "accurate") + " seek to " + seconds + "s from keyframe " + keyframe + "s @ " + framerate + "fps landed on frame " + landed + ", expected " + expected);
+		}
+	}
+}
@@ -31,108 +31,324 @@
 package net.indiespot.media;
 
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import craterstudio.util.concur.SimpleBlockingQueue;
-
+import net.indiespot.media.impl.DirectBufferPool;
+import net.indiespot.media.impl.FrameFormat;
+import net.indiespot.media.impl.FrameRing;
+import net.indiespot.media.impl.IngestScheduler;
+import net.indiespot.media.impl.PipelineMetrics;
 import net.indiespot.media.impl.VideoMetadata;
 
 public class VideoStream implements Closeable {
-	final DataInputStream videoStream;
+	public static int DEFAULT_FRAME_DEPTH = 3;
+
+	final ReadableByteChannel videoChannel;
 	private final VideoMetadata metadata;
-	private final byte[] tmp1, tmp2;
-	private final SimpleBlockingQueue<ByteBuffer> emptyQueue, filledQueue;
+	private final FrameFormat format;
+	private final int frameSize;
+	private final ByteBuffer[] slots;
+	private final FrameRing frameRing;
+	private volatile boolean endOfStream;
+	private long framesToSkip; // pump only
+	private ByteBuffer discardBuffer;
+	private long discardRemaining; // pump only
+	private ByteBuffer filling; // pump only, the slot being read into
+	private long fillingNanos;
+	private final long frameInterval;
+	private volatile long lastPolled;
+
+	// frame indices, counted from the first frame after the leading skip
+	private final long[] slotFrames;
+	private volatile long nextFrame; // written by the pump only
+	private volatile long lateBefore;
+	private long polledFrame = -1L; // consumer only
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final IngestScheduler.Job pump;
+	private volatile PipelineMetrics metrics;
+
+	// slots go back to the pool once both the pump and close() are done
+	private final AtomicInteger slotOwners = new AtomicInteger(2);
+
+	public VideoStream(InputStream rgbStream, VideoMetadata metadata) throws IOException {
+		this(Channels.newChannel(rgbStream), metadata);
+	}
 
-	public VideoStream(InputStream rgbStream, VideoMetadata metadata) {
-		this.videoStream = new DataInputStream(rgbStream);
+	public VideoStream(ReadableByteChannel rgbChannel, VideoMetadata metadata) throws IOException {
+		this(rgbChannel, metadata, FrameFormat.RGB24);
+	}
+
+	public VideoStream(ReadableByteChannel videoChannel, VideoMetadata metadata, FrameFormat format) throws IOException {
+		this(videoChannel, metadata, format, DEFAULT_FRAME_DEPTH);
+	}
+
+	public VideoStream(ReadableByteChannel videoChannel, VideoMetadata metadata, FrameFormat format, int frameDepth) throws IOException {
+		this(videoChannel, metadata, format, frameDepth, 0L);
+	}
+
+	/**
+	 * @param skipFrames
+	 *            number of leading frames to drop, used to seek from a
+	 *            keyframe to the exact frame
+	 */
+	public VideoStream(ReadableByteChannel videoChannel, VideoMetadata metadata, FrameFormat format, int frameDepth, long skipFrames) throws IOException {
+		this.videoChannel = videoChannel;
+		this.framesToSkip = skipFrames;
 		this.metadata = metadata;
+		this.format = format;
+		this.frameSize = format.frameSize(metadata.width, metadata.height);
 
-		this.tmp1 = new byte[64 * 1024];
-		this.tmp2 = new byte[(metadata.width * metadata.height * 3) % tmp1.length];
+		// under memory pressure, settle for less decode-ahead
+		this.slots = DirectBufferPool.acquire(frameSize, frameDepth, Math.min(2, frameDepth));
+		this.frameRing = new FrameRing(slots);
+		this.slotFrames = new long[slots.length];
 
-		this.emptyQueue = new SimpleBlockingQueue<>();
-		this.filledQueue = new SimpleBlockingQueue<>();
+		this.frameInterval = (long) (1000_000_000L / metadata.framerate);
+		this.lastPolled = System.nanoTime();
 
-		for (int i = 0; i < 3; i++) {
-			this.emptyQueue.put(ByteBuffer.allocateDirect(metadata.width * metadata.height * 3));
-		}
+		this.pump = new IngestScheduler.Job() {
+			@Override
+			protected long deadline() {
+				// the consumer runs dry after the frames it has
+				return lastPolled + frameRing.occupied() * frameInterval;
+			}
 
-		new Thread(new Runnable() {
 			@Override
-			public void run() {
-				while (!closed) {
-					if (!pumpFramesInto()) {
-						break;
-					}
-				}
+			protected boolean isReady() {
+				return frameRing.occupied() < frameRing.depth() || frameRing.isClosed() || nextFrame < lateBefore;
+			}
 
-				filledQueue.put(EOF);
+			@Override
+			protected int pump() {
+				int result = closed.get() ? IngestScheduler.DONE : pumpFrameInto();
+				if (result == IngestScheduler.DONE) {
+					endOfStream = true;
+					releaseSlots();
+				}
+				return result;
 			}
-		}).start();
+		};
+		this.frameRing.setSlotListener(new Runnable() {
+			@Override
+			public void run() {
+				IngestScheduler.wake(pump);
+			}
+		});
+		IngestScheduler.submit(pump);
+	}
+
+	/**
+	 * Relative to other streams, see {@link IngestScheduler}
+	 */
+	public void setPriority(int priority) {
+		pump.setPriority(priority);
+	}
+
+	public int getPriority() {
+		return pump.getPriority();
+	}
+
+	public FrameFormat format() {
+		return format;
+	}
+
+	public VideoMetadata metadata() {
+		return metadata;
+	}
+
+	public void setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Frames with a lower index are late by the AV-sync, the pump drops them
+	 * before they take a slot
+	 */
+	public void setLateBefore(long frame) {
+		if (frame <= lateBefore) {
+			return;
+		}
+		lateBefore = frame;
+		if (frame > nextFrame) {
+			// a blocked pump can skip ahead, even with all slots in use
+			IngestScheduler.wake(pump);
+		}
+	}
+
+	/**
+	 * Index of the frame last returned by pollFrameData(), or -1
+	 */
+	public long polledFrame() {
+		return polledFrame;
+	}
+
+	public long droppedFrames() {
+		return droppedFrames.get();
+	}
+
+	public boolean isFrameAvailable() {
+		return frameRing.available() > 0 || endOfStream;
 	}
 
 	public ByteBuffer pollFrameData() {
-		return filledQueue.poll();
+		PipelineMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.queueDepth.record(frameRing.available());
+		}
+
+		ByteBuffer frame = frameRing.poll();
+		if (frame == null && endOfStream) {
+			// frames published before the EOF flag was raised are visible now
+			frame = frameRing.poll();
+			if (frame == null) {
+				return EOF;
+			}
+		}
+		if (frame != null) {
+			lastPolled = System.nanoTime();
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] == frame) {
+					polledFrame = slotFrames[i];
+					break;
+				}
+			}
+		}
+		return frame;
 	}
 
 	public void freeFrameData(ByteBuffer bb) {
 		if (bb == null) {
 			throw new IllegalArgumentException();
 		}
-		bb.clear();
-		emptyQueue.put(bb);
+		frameRing.free(bb);
 	}
 
 	public static final ByteBuffer EOF = ByteBuffer.allocateDirect(1);
 
-	private boolean pumpFramesInto() {
-		ByteBuffer rgbBuffer = emptyQueue.take();
-		if (metadata.width * metadata.height * 3 != rgbBuffer.remaining()) {
-			throw new IllegalArgumentException();
+	/**
+	 * Drains a chunk of a skipped frame from the pipe, it never takes a slot
+	 */
+	private boolean discard() throws IOException {
+		if (discardBuffer == null) {
+			discardBuffer = ByteBuffer.allocateDirect(64 * 1024);
 		}
 
-		/*
-		 * Using DataInputStream(ffmpeg.stdin).readFully(byte[64*1024]) instead of
-		 * DataInputStream(BufferedInputStream(ffmpeg.stdin, 64*1024)) as it is
-		 * about 50x slower... ~8ms vs. ~330ms per frame. wtf?!
-		 */
-
-		int cnt1 = rgbBuffer.remaining() / tmp1.length;
-		int cnt2 = tmp2.length > 0 ? 1 : 0;
+		discardBuffer.clear();
+		discardBuffer.limit((int) Math.min(discardRemaining, discardBuffer.capacity()));
+		int got = videoChannel.read(discardBuffer);
+		if (got == -1) {
+			return false;
+		}
+		discardRemaining -= got;
+		return true;
+	}
 
+	/*
+	 * A turn reads what the pipe has, rather than a whole frame, so that a
+	 * slow decoder does not hold on to an ingest thread while more urgent
+	 * streams wait.
+	 */
+	private int pumpFrameInto() {
 		try {
+			if (discardRemaining > 0L) {
+				return this.discard() ? IngestScheduler.MORE : IngestScheduler.DONE;
+			}
+
+			if (filling == null) {
+				if (framesToSkip > 0) {
+					framesToSkip--;
+					discardRemaining = frameSize;
+					return this.discard() ? IngestScheduler.MORE : IngestScheduler.DONE;
+				}
+
+				if (nextFrame < lateBefore && !closed.get()) {
+					// too late to be shown: drain it from the pipe, without the copy into a slot
+					nextFrame++;
+					droppedFrames.incrementAndGet();
+					PipelineMetrics metrics = this.metrics;
+					if (metrics != null) {
+						metrics.framesDropped.incrementAndGet();
+					}
+					discardRemaining = frameSize;
+					return this.discard() ? IngestScheduler.MORE : IngestScheduler.DONE;
+				}
+
+				filling = frameRing.tryAcquire();
+				if (filling == null) {
+					return frameRing.isClosed() ? IngestScheduler.DONE : IngestScheduler.BLOCKED;
+				}
+				if (frameSize != filling.remaining()) {
+					throw new IllegalArgumentException();
+				}
+				fillingNanos = 0L;
+			}
+
 			/*
-			 * Wouldn't that be easy...
-			 * 
-			 * videoStream.readFully(rgbArray);
+			 * With a FileChannel on a named pipe the kernel copies straight
+			 * into the direct buffer: no intermediate byte[] per frame.
 			 */
 
-			for (int i = 0; i < cnt1; i++) {
-				videoStream.readFully(tmp1);
-				rgbBuffer.put(tmp1);
+			long started = System.nanoTime();
+			if (videoChannel.read(filling) == -1) {
+				return IngestScheduler.DONE;
+			}
+			fillingNanos += System.nanoTime() - started;
+			if (filling.hasRemaining()) {
+				return IngestScheduler.MORE;
+			}
+
+			ByteBuffer frameBuffer = filling;
+			filling = null;
+			frameBuffer.flip();
+
+			PipelineMetrics metrics = this.metrics;
+			if (metrics != null) {
+				metrics.pipeRead.record(fillingNanos);
 			}
-			for (int i = 0; i < cnt2; i++) {
-				videoStream.readFully(tmp2);
-				rgbBuffer.put(tmp2);
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] == frameBuffer) {
+					slotFrames[i] = nextFrame;
+					break;
+				}
 			}
-			rgbBuffer.flip();
-			
-			filledQueue.put(rgbBuffer);
+			nextFrame++;
+
+			frameRing.publish();
 
-			return true;
+			return IngestScheduler.MORE;
 		} catch (IOException exc) {
-			return false;
+			return IngestScheduler.DONE;
+		}
+	}
+
+	private void releaseSlots() {
+		if (slotOwners.decrementAndGet() == 0) {
+			DirectBufferPool.release(slots);
 		}
 	}
 
-	volatile boolean closed;
+	final AtomicBoolean closed = new AtomicBoolean();
 
 	@Override
 	public void close() throws IOException {
-		this.closed = true;
-		this.videoStream.close();
+		// may be closed from more than one thread
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			// the process goes down with the pipe, which wakes up a blocked pump
+			this.videoChannel.close();
+		} finally {
+			this.frameRing.close();
+			this.releaseSlots();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.AL11.AL_SAMPLE_OFFSET;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mixes the audio of any number of movies into a single OpenAL source, so
+ * that a wall of videos does not run out of sources.
+ * 
+ * Every chunk of output holds the samples of all playing streams, each
+ * scaled by its own gain. Mixing allocates nothing: the loops run over
+ * primitive arrays, in a shape the JIT can vectorize.
+ * 
+ * Only to be used from the thread that owns the OpenAL context.
+ */
+public class AudioMixer {
+	public static int SAMPLE_RATE = 44100;
+	public static int CHUNK_SAMPLES = 1024;
+	public static float LATENCY = 0.100f;
+
+	private static AudioMixer shared;
+
+	/**
+	 * The mixer of all MixedAudioRenderers, created on demand, and closed
+	 * once the last of them is detached
+	 */
+	public static AudioMixer shared() {
+		if (shared == null) {
+			shared = new AudioMixer(SAMPLE_RATE, CHUNK_SAMPLES);
+		}
+		return shared;
+	}
+
+	final int sampleRate;
+	final int chunkSamples;
+	private final List<MixedAudioRenderer> inputs = new ArrayList<>();
+
+	private final int[] mix; // interleaved stereo
+	private final short[] pcm;
+	private final ByteBuffer output;
+	private final ShortBuffer outputShorts;
+
+	private int alSource;
+	private int[] buffers = new int[8];
+	private int buffersGenerated;
+	private int[] idleBuffers = new int[8];
+	private int idleCount;
+
+	private int queuedChunks;
+	private long chunksUnqueued;
+	private long nextChunk;
+	private long playedSamples;
+	private float gain = 1.0f;
+
+	private AudioMixer(int sampleRate, int chunkSamples) {
+		this.sampleRate = sampleRate;
+		this.chunkSamples = chunkSamples;
+		this.mix = new int[chunkSamples * 2];
+		this.pcm = new short[chunkSamples * 2];
+		this.output = ByteBuffer.allocateDirect(chunkSamples * 4).order(ByteOrder.nativeOrder());
+		this.outputShorts = output.asShortBuffer();
+	}
+
+	void attach(MixedAudioRenderer input) {
+		if (input.sampleRate() != sampleRate) {
+			throw new IllegalStateException("sample rate " + input.sampleRate() + " does not match the mixer: " + sampleRate);
+		}
+		inputs.add(input);
+	}
+
+	void detach(MixedAudioRenderer input) {
+		if (!inputs.remove(input) || !inputs.isEmpty()) {
+			return;
+		}
+
+		if (alSource != 0) {
+			alSourceStop(alSource);
+			alDeleteSources(alSource);
+			alSource = 0;
+			for (int i = 0; i < buffersGenerated; i++) {
+				alDeleteBuffers(buffers[i]);
+			}
+			buffersGenerated = 0;
+			idleCount = 0;
+		}
+		if (shared == this) {
+			shared = null;
+		}
+	}
+
+	/**
+	 * The gain of the source, on top of the gain of each stream
+	 */
+	public void setGain(float gain) {
+		this.gain = gain;
+		if (alSource != 0) {
+			alSourcef(alSource, AL_GAIN, gain);
+		}
+	}
+
+	/**
+	 * Index of the chunk that will be mixed next
+	 */
+	long nextChunk() {
+		return nextChunk;
+	}
+
+	/**
+	 * Samples of output played since the mixer was created
+	 */
+	long playedSamples() {
+		return playedSamples;
+	}
+
+	/**
+	 * Recycles the played chunks, and mixes new ones up to the latency.
+	 * Cheap enough to call for every stream, every frame.
+	 */
+	void tick() {
+		if (alSource == 0) {
+			alSource = alGenSources();
+			if (alSource == 0) {
+				throw new IllegalStateException();
+			}
+			alSourcef(alSource, AL_GAIN, gain);
+		}
+
+		for (int i = alGetSourcei(alSource, AL_BUFFERS_PROCESSED); i > 0; i--) {
+			idleBuffers[idleCount++] = alSourceUnqueueBuffers(alSource);
+			queuedChunks--;
+			chunksUnqueued++;
+		}
+
+		boolean playing = false;
+		for (int i = 0; i < inputs.size(); i++) {
+			playing |= inputs.get(i).isMixing();
+		}
+
+		// with nothing to play, the source runs dry and stops
+		int targetChunks = Math.max(2, (int) Math.ceil(LATENCY * sampleRate / chunkSamples));
+		while (playing && queuedChunks < targetChunks) {
+			this.mixChunk();
+		}
+
+		boolean stopped = alGetSourcei(alSource, AL_SOURCE_STATE) != AL_PLAYING;
+		if (stopped && queuedChunks > 0) {
+			alSourcePlay(alSource);
+			stopped = false;
+		}
+
+		long offset = stopped ? 0L : alGetSourcei(alSource, AL_SAMPLE_OFFSET);
+		playedSamples = chunksUnqueued * chunkSamples + offset;
+	}
+
+	private void mixChunk() {
+		Arrays.fill(mix, 0);
+		for (int i = 0; i < inputs.size(); i++) {
+			inputs.get(i).mixInto(mix, nextChunk);
+		}
+		nextChunk++;
+
+		for (int i = 0; i < mix.length; i++) {
+			int sample = mix[i];
+			pcm[i] = (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : (sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample));
+		}
+		outputShorts.clear();
+		outputShorts.put(pcm);
+		output.clear();
+
+		int buffer = this.nextBuffer();
+		alBufferData(buffer, AL_FORMAT_STEREO16, output, sampleRate);
+		alSourceQueueBuffers(alSource, buffer);
+		queuedChunks++;
+	}
+
+	private int nextBuffer() {
+		if (idleCount > 0) {
+			return idleBuffers[--idleCount];
+		}
+
+		int buffer = alGenBuffers();
+		if (buffersGenerated == buffers.length) {
+			buffers = Arrays.copyOf(buffers, buffers.length * 2);
+			idleBuffers = new int[buffers.length];
+		}
+		buffers[buffersGenerated++] = buffer;
+		return buffer;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide pool of direct buffers, keyed by capacity.
+ * 
+ * Buffers are recycled across movies and seeks, and freed explicitly (not
+ * by the GC) when they are evicted. All buffers, idle or in use, count
+ * towards the off-heap budget.
+ */
+public class DirectBufferPool {
+	public static long MAX_WAIT_MILLIS = 2500;
+
+	private static final Map<Integer, ArrayDeque<ByteBuffer>> idle = new HashMap<>();
+	private static long budget = 512L * 1024 * 1024;
+	private static long allocated;
+	private static long idleBytes;
+	private static final ThreadLocal<Boolean> failFast = new ThreadLocal<>();
+
+	public static synchronized void setBudget(long bytes) {
+		budget = bytes;
+		evict(0L);
+		DirectBufferPool.class.notifyAll();
+	}
+
+	public static synchronized long getBudget() {
+		return budget;
+	}
+
+	public static synchronized long allocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * Makes acquire() fail right away on the calling thread, rather than wait
+	 * for buffers, when the budget is exhausted. For the render thread: the
+	 * streams that would release their buffers are closed by it.
+	 */
+	public static void failFastOnCurrentThread() {
+		failFast.set(Boolean.TRUE);
+	}
+
+	public static ByteBuffer acquire(int capacity) throws IOException {
+		return acquire(capacity, 1, 1)[0];
+	}
+
+	/**
+	 * Returns null rather than waiting, when the budget is exhausted
+	 */
+	public static synchronized ByteBuffer tryAcquire(int capacity) {
+		if (grantable(capacity, 1) < 1) {
+			return null;
+		}
+		try {
+			return acquire(capacity, 1, 1)[0];
+		} catch (IOException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Hands out up to <code>count</code> buffers, but settles for fewer (never
+	 * less than <code>minCount</code>) when the budget is tight. If even that
+	 * does not fit, waits for other streams to release their buffers.
+	 */
+	public static synchronized ByteBuffer[] acquire(int capacity, int count, int minCount) throws IOException {
+		if (minCount < 1 || minCount > count) {
+			throw new IllegalArgumentException();
+		}
+
+		long deadline = System.currentTimeMillis() + (Boolean.TRUE.equals(failFast.get()) ? 0L : MAX_WAIT_MILLIS);
+		int granted;
+		while ((granted = grantable(capacity, count)) < minCount) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				throw new IOException("off-heap budget of " + budget + " bytes exceeded: " + allocated + " allocated, " + ((long) capacity * minCount) + " requested");
+			}
+			try {
+				DirectBufferPool.class.wait(wait);
+			} catch (InterruptedException exc) {
+				throw new IOException(exc);
+			}
+		}
+
+		ByteBuffer[] buffers = new ByteBuffer[granted];
+		ArrayDeque<ByteBuffer> pooled = idle.get(Integer.valueOf(capacity));
+		for (int i = 0; i < granted; i++) {
+			if (pooled != null && !pooled.isEmpty()) {
+				buffers[i] = pooled.removeFirst();
+				idleBytes -= capacity;
+			} else {
+				evict(capacity);
+				buffers[i] = ByteBuffer.allocateDirect(capacity);
+				allocated += capacity;
+			}
+		}
+		return buffers;
+	}
+
+	private static int grantable(int capacity, int count) {
+		ArrayDeque<ByteBuffer> pooled = idle.get(Integer.valueOf(capacity));
+		int reusable = (pooled == null) ? 0 : Math.min(count, pooled.size());
+
+		// idle buffers of other sizes can be evicted to make room
+		long room = budget - (allocated - idleBytes) - (long) capacity * reusable;
+		long fresh = Math.max(0L, Math.min(count - reusable, room / capacity));
+		return reusable + (int) fresh;
+	}
+
+	private static void evict(long needed) {
+		Iterator<ArrayDeque<ByteBuffer>> it = idle.values().iterator();
+		while (allocated + needed > budget && it.hasNext()) {
+			ArrayDeque<ByteBuffer> pooled = it.next();
+			while (allocated + needed > budget && !pooled.isEmpty()) {
+				ByteBuffer buffer = pooled.removeFirst();
+				allocated -= buffer.capacity();
+				idleBytes -= buffer.capacity();
+				free(buffer);
+			}
+			if (pooled.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	public static synchronized void release(ByteBuffer buffer) {
+		buffer.clear();
+
+		if (allocated > budget) {
+			allocated -= buffer.capacity();
+			free(buffer);
+		} else {
+			Integer key = Integer.valueOf(buffer.capacity());
+			ArrayDeque<ByteBuffer> pooled = idle.get(key);
+			if (pooled == null) {
+				idle.put(key, pooled = new ArrayDeque<>());
+			}
+			pooled.addLast(buffer);
+			idleBytes += buffer.capacity();
+		}
+
+		DirectBufferPool.class.notifyAll();
+	}
+
+	public static void release(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Frees all idle buffers
+	 */
+	public static synchronized void trim() {
+		long keep = budget;
+		budget = allocated - idleBytes;
+		evict(0L);
+		budget = keep;
+	}
+
+	//
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe = null;
+		Method method = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			method = type.getMethod("invokeCleaner", ByteBuffer.class); // Java 9+
+		} catch (Exception exc) {
+			method = null;
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = method;
+	}
+
+	private static void free(ByteBuffer buffer) {
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception exc) {
+			// leave it to the GC
+		}
+	}
+}
@@ -35,10 +35,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 import craterstudio.io.Streams;
-import craterstudio.streams.NullOutputStream;
 import craterstudio.text.RegexUtil;
 import craterstudio.text.TextValues;
 
@@ -46,6 +56,11 @@ public class FFmpeg {
 
 	public static String FFMPEG_PATH;
 	public static boolean FFMPEG_VERBOSE = false;
+	public static boolean FFMPEG_NAMED_PIPES = !Extractor.isWindows;
+	public static boolean FFMPEG_SINGLE_PROCESS = false;
+	public static boolean FFMPEG_Y4M = true;
+	public static boolean FFMPEG_KEYFRAME_SEEK = true;
+	public static int FFMPEG_AUDIO_RATE = 0; // resample the audio to this rate, if set
 
 	static {
 		String resourceName = "./lib/ffmpeg/ffmpeg";
@@ -70,12 +85,16 @@ public class FFmpeg {
 		   FFMPEG_PATH, //
 		   "-i", srcMovieFile.getAbsolutePath(),//
 		   "-f", "null"//
-		).start();
-		Streams.asynchronousTransfer(process.getInputStream(), System.out, true, false);
+		).redirectOutput(Redirect.INHERIT).start();
+		Reaper.register(process);
 
 		int width = -1;
 		int height = -1;
 		float framerate = -1;
+		double duration = -1.0;
+		String pixelFormat = null;
+		int audioSampleRate = 0;
+		int audioChannels = 0;
 
 		try {
 			InputStream stderr = process.getErrorStream();
@@ -83,6 +102,17 @@ public class FFmpeg {
 			for (String line; (line = br.readLine()) != null;) {
 				//System.out.println("ffmpeg: " + line);
 
+				// Look for:
+				// "  Duration: 00:01:23.45, start: 0.000000, bitrate: 1234 kb/s"
+				// --------------^
+
+				if (line.trim().startsWith("Duration:") && duration < 0.0) {
+					String[] hms = RegexUtil.find(line, Pattern.compile("Duration:\\s(\\d+):(\\d+):(\\d+(\\.\\d+)?)"), 1, 2, 3);
+					if (hms != null) {
+						duration = Integer.parseInt(hms[0]) * 3600 + Integer.parseInt(hms[1]) * 60 + Double.parseDouble(hms[2]);
+					}
+				}
+
 				// Look for:
 				// "	Stream #0:0: Video: vp6f, yuv420p, 320x240, 314 kb/s, 30 tbr, 1k tbn, 1k tbc"
 				// ----------------------------------------------------------^
@@ -92,36 +122,264 @@ public class FFmpeg {
 					int[] wh = TextValues.parseInts(RegexUtil.find(line, Pattern.compile("\\s(\\d+)x(\\d+)[\\s,]"), 1, 2));
 					width = wh[0];
 					height = wh[1];
+
+					// "yuv420p, 320x240" or "yuv420p(tv, bt709), 1920x1080"
+					pixelFormat = RegexUtil.findFirst(line, Pattern.compile("\\s([a-z0-9_]+)(\\([^)]*\\))?,\\s+\\d+x\\d+"), 1);
+				}
+
+				// Look for:
+				// "	Stream #0:1: Audio: aac, 44100 Hz, stereo, fltp, 128 kb/s"
+				// ----------------------------------^
+
+				if (line.trim().startsWith("Stream #") && line.contains("Audio:") && audioChannels == 0) {
+					String rate = RegexUtil.findFirst(line, Pattern.compile("\\s(\\d+)\\sHz"), 1);
+					audioSampleRate = (rate == null) ? -1 : Integer.parseInt(rate);
+					audioChannels = parseChannelLayout(line);
 				}
 			}
 
 			if (framerate == -1) {
 				throw new IllegalStateException("failed to find framerate of video");
 			}
-			return new VideoMetadata(width, height, framerate);
+			return new VideoMetadata(width, height, framerate, duration, pixelFormat, audioSampleRate, audioChannels);
 		} finally {
 			Streams.safeClose(process);
+			Reaper.reap(process, "ffmpeg probe");
 		}
 	}
 
-	public static InputStream extractVideoAsRGB24(File srcMovieFile, int seconds) throws IOException {
-		return streamData(new ProcessBuilder().command(//
-		   FFMPEG_PATH, //
-		   "-ss", String.valueOf(seconds), //
-		   "-i", srcMovieFile.getAbsolutePath(), //		   
+	private static int parseChannelLayout(String line) {
+		String count = RegexUtil.findFirst(line, Pattern.compile("\\s(\\d+)\\schannels"), 1);
+		if (count != null) {
+			return Integer.parseInt(count);
+		}
+
+		String[] layouts = { "mono", "stereo", "2.1", "quad", "5.0", "5.1", "6.1", "7.1" };
+		int[] channels = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		for (int i = 0; i < layouts.length; i++) {
+			if (line.contains(" " + layouts[i])) {
+				return channels[i];
+			}
+		}
+		return -1; // has audio, unknown layout
+	}
+
+	public static InputStream extractVideoAsRGB24(File srcMovieFile, double seconds) throws IOException {
+		return extractVideo(srcMovieFile, seconds, FrameFormat.RGB24);
+	}
+
+	public static InputStream extractVideo(File srcMovieFile, double seconds, FrameFormat format) throws IOException {
+		return streamData(command(input(srcMovieFile, seconds, false), //
 		   "-f", "rawvideo", //
-		   "-pix_fmt", "rgb24", //
+		   "-pix_fmt", format.pixFmt, //
 		   "-" //
 		));
 	}
 
+	public static ReadableByteChannel extractVideoAsRGB24Channel(File srcMovieFile, double seconds) throws IOException {
+		return extractVideoChannel(srcMovieFile, seconds, FrameFormat.RGB24);
+	}
+
+	public static ReadableByteChannel extractVideoChannel(File srcMovieFile, double seconds, FrameFormat format) throws IOException {
+		return extractVideoChannel(srcMovieFile, seconds, format, false);
+	}
+
+	public static ReadableByteChannel extractVideoChannel(File srcMovieFile, double seconds, FrameFormat format, boolean fromKeyframe) throws IOException {
+		return extractVideoChannel(srcMovieFile, seconds, format, fromKeyframe, 0, 0);
+	}
+
+	/**
+	 * @param width
+	 *            output width, or 0 for the source dimensions
+	 * @param height
+	 *            output height, or 0 for the source dimensions
+	 */
+	public static ReadableByteChannel extractVideoChannel(File srcMovieFile, double seconds, FrameFormat format, boolean fromKeyframe, int width, int height) throws IOException {
+		return videoChannel(input(srcMovieFile, seconds, fromKeyframe), "rawvideo", format, scale(width, height));
+	}
+
+	/**
+	 * At most the specified number of frames, starting at the first frame at
+	 * or after the timestamp
+	 */
+	public static ReadableByteChannel extractVideoSegment(File srcMovieFile, double seconds, long frameCount, FrameFormat format) throws IOException {
+		return videoChannel(input(srcMovieFile, seconds, false), "rawvideo", format, Arrays.asList("-frames:v", String.valueOf(frameCount)));
+	}
+
+	/**
+	 * yuv420p frames in a YUV4MPEG2 stream, which carries its own dimensions
+	 * and exact framerate
+	 */
+	public static ReadableByteChannel extractVideoAsY4M(File srcMovieFile, double seconds, boolean fromKeyframe) throws IOException {
+		return extractVideoAsY4M(srcMovieFile, seconds, fromKeyframe, 0, 0);
+	}
+
+	/**
+	 * Scales down to fit within the specified size, 0 means unbounded. The
+	 * stream header reports the resulting dimensions.
+	 */
+	public static ReadableByteChannel extractVideoAsY4M(File srcMovieFile, double seconds, boolean fromKeyframe, int maxWidth, int maxHeight) throws IOException {
+		return videoChannel(input(srcMovieFile, seconds, fromKeyframe), "yuv4mpegpipe", FrameFormat.YUV420P, scaleToFit(maxWidth, maxHeight));
+	}
+
+	private static ReadableByteChannel videoChannel(List<String> input, String container, FrameFormat format, List<String> filter) throws IOException {
+		input = new ArrayList<>(input);
+		input.addAll(filter);
+
+		if (!FFMPEG_NAMED_PIPES) {
+			return Channels.newChannel(streamData(command(input, //
+			   "-f", container, //
+			   "-pix_fmt", format.pixFmt, //
+			   "-" //
+			)));
+		}
+
+		NamedPipe pipe = NamedPipe.create();
+		ProcessHandle process = start(command(input, //
+		   "-f", container, //
+		   "-pix_fmt", format.pixFmt, //
+		   pipe.path() //
+		), 1);
+		return connected(process, pipe);
+	}
+
+	/**
+	 * Waits for ffmpeg to open the pipe here, so that the ingest threads never
+	 * block on it
+	 */
+	private static ReadableByteChannel connected(ProcessHandle process, NamedPipe pipe) throws IOException {
+		NamedPipe.PipeChannel channel = pipe.openChannel();
+		ReadableByteChannel owned = process.own(channel);
+		try {
+			channel.connect();
+		} catch (IOException exc) {
+			Streams.safeClose(owned);
+			throw exc;
+		}
+		return owned;
+	}
+
+	private static List<String> audioRate() {
+		if (FFMPEG_AUDIO_RATE <= 0) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList("-ar", String.valueOf(FFMPEG_AUDIO_RATE));
+	}
+
+	private static List<String> scale(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList("-vf", "scale=" + width + ":" + height);
+	}
+
+	private static List<String> scaleToFit(int maxWidth, int maxHeight) {
+		if (maxWidth <= 0 && maxHeight <= 0) {
+			return Collections.emptyList();
+		}
+
+		// same result as VideoMetadata.scaledToFit: never upscale, even dimensions
+		String w = (maxWidth <= 0) ? "iw" : "min(iw," + maxWidth + ")";
+		String h = (maxHeight <= 0) ? "ih" : "min(ih," + maxHeight + ")";
+		String scale = "min(" + w + "/iw," + h + "/ih)";
+		return Arrays.asList("-vf", "scale='max(2,2*trunc(iw*" + scale + "/2))':'max(2,2*trunc(ih*" + scale + "/2))'");
+	}
+
+	/**
+	 * Demuxes the file once, writing raw video and WAV audio to two named
+	 * pipes, returned as {video, audio}
+	 */
+	public static ReadableByteChannel[] extractVideoAndAudio(File srcMovieFile, double seconds, FrameFormat format, boolean fromKeyframe) throws IOException {
+		return extractVideoAndAudio(srcMovieFile, seconds, format, fromKeyframe, 0, 0);
+	}
+
+	public static ReadableByteChannel[] extractVideoAndAudio(File srcMovieFile, double seconds, FrameFormat format, boolean fromKeyframe, int width, int height) throws IOException {
+		if (!FFMPEG_NAMED_PIPES) {
+			throw new IllegalStateException("requires named pipes");
+		}
+
+		List<String> input = input(srcMovieFile, seconds, fromKeyframe);
+		input.addAll(scale(width, height));
+
+		NamedPipe[] pipes = NamedPipe.create(2);
+		NamedPipe videoPipe = pipes[0];
+		NamedPipe audioPipe = pipes[1];
+		Collections.addAll(input, //
+		   "-map", "0:v:0", //
+		   "-f", "rawvideo", //
+		   "-pix_fmt", format.pixFmt, //
+		   videoPipe.path() //
+		);
+		input.addAll(audioRate());
+		ProcessHandle process = start(command(input, //
+		   "-map", "0:a:0", //
+		   "-acodec", "pcm_s16le", //
+		   "-ac", "2", //
+		   "-f", "wav", //
+		   audioPipe.path() //
+		), 2);
+
+		// the process is reaped once both pipes are closed, ffmpeg opens the audio pipe after the video pipe
+		ReadableByteChannel audioChannel = process.own(audioPipe.openChannel());
+		ReadableByteChannel videoChannel;
+		try {
+			videoChannel = connected(process, videoPipe);
+		} catch (IOException exc) {
+			Streams.safeClose(audioChannel);
+			throw exc;
+		}
+		return new ReadableByteChannel[] { videoChannel, audioChannel };
+	}
+
+	/**
+	 * Drains the stream on a separate thread into a buffer of the specified
+	 * size, so that the producer is not held up by a slow consumer. Closing
+	 * the returned stream closes the source as well.
+	 */
+	public static InputStream prefetch(final InputStream source, final int bufferSize) throws IOException {
+		PipedInputStream sink = new PipedInputStream(bufferSize) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					// wakes up the transfer thread, if it is blocked on a read
+					source.close();
+				}
+			}
+		};
+		final PipedOutputStream target = new PipedOutputStream(sink);
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[Math.min(bufferSize, 64 * 1024)];
+				try {
+					for (int got; (got = source.read(chunk)) != -1;) {
+						target.write(chunk, 0, got);
+
+						// wakes up the reader, which otherwise polls once a second
+						target.flush();
+					}
+				} catch (IOException exc) {
+					// closed by the reader, or the process died
+				} finally {
+					Streams.safeClose(source);
+					Streams.safeClose(target);
+				}
+			}
+		}, "ffmpeg-prefetch");
+		thread.setDaemon(true);
+		thread.start();
+		return sink;
+	}
+
 	//
 
-	public static InputStream extractAudioAsWAV(File srcMovieFile, int seconds) throws IOException {
-		return streamData(new ProcessBuilder().command(//
-		   FFMPEG_PATH, //
-		   "-ss", String.valueOf(seconds), //
-		   "-i", srcMovieFile.getAbsolutePath(), //
+	public static InputStream extractAudioAsWAV(File srcMovieFile, double seconds) throws IOException {
+		List<String> input = input(srcMovieFile, seconds, false);
+		input.addAll(audioRate());
+		return streamData(command(input, //
 		   "-acodec", "pcm_s16le", //
 		   "-ac", "2", //		    
 		   "-f", "wav", //
@@ -129,11 +387,239 @@ public class FFmpeg {
 		));
 	}
 
+	/**
+	 * WAV audio, through a named pipe where available so that samples can be
+	 * read straight into direct buffers
+	 */
+	public static ReadableByteChannel extractAudioChannel(File srcMovieFile, double seconds) throws IOException {
+		if (!FFMPEG_NAMED_PIPES) {
+			return Channels.newChannel(extractAudioAsWAV(srcMovieFile, seconds));
+		}
+
+		List<String> input = input(srcMovieFile, seconds, false);
+		input.addAll(audioRate());
+
+		NamedPipe pipe = NamedPipe.create();
+		ProcessHandle process = start(command(input, //
+		   "-acodec", "pcm_s16le", //
+		   "-ac", "2", //
+		   "-f", "wav", //
+		   pipe.path() //
+		), 1);
+		return process.own(pipe.openChannel());
+	}
+
+	//
+
+	/**
+	 * One frame per timestamp, from a single process: every timestamp is an
+	 * input of its own, so that each is reached by a fast seek
+	 * 
+	 * @param png
+	 *            PNG images in sequence, rather than rgb24 frames
+	 */
+	public static InputStream extractFrames(File srcMovieFile, double[] seconds, int width, int height, boolean png) throws IOException {
+		String scale = (width > 0 && height > 0) ? ",scale=" + width + ":" + height : "";
+		if (png) {
+			return extractFrames(srcMovieFile, seconds, scale, "-f", "image2pipe", "-c:v", "png", "-");
+		}
+		return extractFrames(srcMovieFile, seconds, scale, "-f", "rawvideo", "-pix_fmt", FrameFormat.RGB24.pixFmt, "-");
+	}
+
+	/**
+	 * One PNG image, with the frames at the timestamps laid out in a grid
+	 */
+	public static InputStream extractContactSheet(File srcMovieFile, double[] seconds, int columns, int thumbnailWidth) throws IOException {
+		int rows = (seconds.length + columns - 1) / columns;
+		String tile = ",scale=" + thumbnailWidth + ":-2,tile=" + columns + "x" + rows;
+		return extractFrames(srcMovieFile, seconds, tile, "-frames:v", "1", "-f", "image2pipe", "-c:v", "png", "-");
+	}
+
+	private static InputStream extractFrames(File srcMovieFile, double[] seconds, String postFilter, String... output) throws IOException {
+		List<String> command = new ArrayList<>();
+		Collections.addAll(command, FFMPEG_PATH, "-y");
+
+		StringBuilder filter = new StringBuilder();
+		for (int i = 0; i < seconds.length; i++) {
+			Collections.addAll(command, "-threads", "1", "-ss", formatTime(seconds[i]), "-i", srcMovieFile.getAbsolutePath());
+			filter.append('[').append(i).append(":v:0]trim=end_frame=1,setpts=PTS-STARTPTS[v").append(i).append("];");
+		}
+		for (int i = 0; i < seconds.length; i++) {
+			filter.append("[v").append(i).append(']');
+		}
+		filter.append("concat=n=").append(seconds.length).append(":v=1:a=0").append(postFilter).append("[out]");
+
+		Collections.addAll(command, "-filter_complex", filter.toString(), "-map", "[out]", "-vsync", "0");
+		return streamData(command(command, output));
+	}
+
+	//
+
+	/**
+	 * Small rgb24 frames, one every interval, decoded from keyframes only at
+	 * the lowest scheduling priority
+	 */
+	public static InputStream extractThumbnails(File srcMovieFile, double interval, int width, int height) throws IOException {
+		List<String> command = new ArrayList<>();
+		if (!Extractor.isWindows) {
+			Collections.addAll(command, "nice", "-n", "19");
+		}
+		Collections.addAll(command, FFMPEG_PATH, "-y", //
+		   "-skip_frame", "nokey", //
+		   "-threads", "1", //
+		   "-i", srcMovieFile.getAbsolutePath());
+
+		return streamData(command(command, //
+		   "-an", //
+		   "-vf", "fps=1/" + formatTime(interval) + ",scale=" + width + ":" + height, //
+		   "-f", "rawvideo", //
+		   "-pix_fmt", FrameFormat.RGB24.pixFmt, //
+		   "-" //
+		));
+	}
+
 	//
 
+	/**
+	 * Decodes only the keyframes, and reports their timestamps in seconds
+	 */
+	public static double[] extractKeyframeTimes(File srcMovieFile) throws IOException {
+		Process process = new ProcessBuilder().command(//
+		   FFMPEG_PATH, //
+		   "-skip_frame", "nokey", //
+		   "-i", srcMovieFile.getAbsolutePath(), //
+		   "-an", //
+		   "-vf", "showinfo", //
+		   "-vsync", "0", //
+		   "-f", "null", //
+		   "-" //
+		).redirectOutput(Redirect.to(NULL_FILE)).start();
+		Reaper.register(process);
+
+		double[] times = new double[64];
+		int count = 0;
+		long[] timeBase = null;
+		double startTime = 0.0;
+
+		try {
+			InputStream stderr = process.getErrorStream();
+			BufferedReader br = new BufferedReader(new InputStreamReader(stderr));
+			for (String line; (line = br.readLine()) != null;) {
+				// Look for:
+				// "  Duration: 00:01:23.45, start: 1.400000, bitrate: 1234 kb/s"
+				// -----------------------------------^
+
+				if (line.trim().startsWith("Duration:")) {
+					String start = RegexUtil.findFirst(line, Pattern.compile("start:\\s*(-?\\d+(\\.\\d+)?)"), 1);
+					if (start != null) {
+						startTime = Double.parseDouble(start);
+					}
+				}
+
+				if (!line.contains("showinfo")) {
+					continue;
+				}
+
+				// Look for (newer builds):
+				// "[Parsed_showinfo_0 @ 0x...] config in time_base: 1/90000, frame_rate: 30000/1001"
+				// ------------------------------------------------------^
+
+				String[] tb = RegexUtil.find(line, Pattern.compile("time_base:\\s*(\\d+)/(\\d+)"), 1, 2);
+				if (tb != null) {
+					timeBase = new long[] { Long.parseLong(tb[0]), Long.parseLong(tb[1]) };
+				}
+
+				// Look for:
+				// "[Parsed_showinfo_0 @ 0x...] n:3 pts:3003 pts_time:1.001 pos:..."
+				// -----------------------------------^
+
+				String pts = RegexUtil.findFirst(line, Pattern.compile("\\spts:\\s*(-?\\d+)"), 1);
+				String ptsTime = RegexUtil.findFirst(line, Pattern.compile("\\spts_time:\\s*(-?\\d+(\\.\\d+)?)"), 1);
+				if (ptsTime == null) {
+					continue;
+				}
+
+				if (count == times.length) {
+					times = Arrays.copyOf(times, count * 2);
+				}
+
+				// pts_time may be printed with as few as 6 significant digits
+				if (timeBase != null && pts != null) {
+					times[count++] = Long.parseLong(pts) * timeBase[0] / (double) timeBase[1];
+				} else {
+					times[count++] = Double.parseDouble(ptsTime);
+				}
+			}
+
+			try {
+				if (process.waitFor() != 0) {
+					throw new IOException("ffmpeg failed to index keyframes: " + srcMovieFile.getAbsolutePath());
+				}
+			} catch (InterruptedException exc) {
+				throw new InterruptedIOException();
+			}
+
+			// pts are stream timestamps, -ss is relative to the start of the file
+			times = Arrays.copyOf(times, count);
+			for (int i = 0; i < count; i++) {
+				times[i] = Math.max(0.0, times[i] - startTime);
+			}
+			return times;
+		} finally {
+			Streams.safeClose(process);
+			Reaper.reap(process, "ffmpeg probe");
+		}
+	}
+
+	//
+
+	private static List<String> input(File srcMovieFile, double seconds, boolean fromKeyframe) {
+		List<String> command = new ArrayList<>();
+		Collections.addAll(command, FFMPEG_PATH, "-y");
+
+		// all video decoders together stay within the CPU budget
+		Collections.addAll(command, "-threads:v", String.valueOf(IngestScheduler.decoderThreads()));
+
+		if (fromKeyframe && FFMPEG_KEYFRAME_SEEK) {
+			// start at the keyframe at or before the timestamp, decode nothing in between
+			command.add("-noaccurate_seek");
+		}
+		Collections.addAll(command, "-ss", formatTime(seconds), "-i", srcMovieFile.getAbsolutePath());
+		return command;
+	}
+
+	private static ProcessBuilder command(List<String> input, String... output) {
+		List<String> command = new ArrayList<>(input);
+		Collections.addAll(command, output);
+		return new ProcessBuilder().command(command);
+	}
+
+	private static String formatTime(double seconds) {
+		return String.format(Locale.ROOT, "%.6f", Math.max(0.0, seconds));
+	}
+
+	//
+
+	/**
+	 * Closing the returned stream destroys the process
+	 */
 	private static InputStream streamData(ProcessBuilder pb) throws IOException {
-		Process process = pb.start();
-		Streams.asynchronousTransfer(process.getErrorStream(), FFMPEG_VERBOSE ? System.err : new NullOutputStream(), true, false);
-		return process.getInputStream();
+		ProcessHandle process = start(pb, 1);
+		return process.own(process.stdout());
 	}
+
+	private static ProcessHandle start(ProcessBuilder pb, int owners) throws IOException {
+		List<String> command = pb.command();
+		String output = command.get(command.size() - 1);
+
+		// no threads to drain stderr, or stdout when writing to named pipes
+		pb.redirectError(FFMPEG_VERBOSE ? Redirect.INHERIT : Redirect.to(NULL_FILE));
+		if (!output.equals("-")) {
+			pb.redirectOutput(Redirect.to(NULL_FILE));
+		}
+
+		return new ProcessHandle(pb.start(), "ffmpeg " + output, owners);
+	}
+
+	private static final File NULL_FILE = new File(Extractor.isWindows ? "NUL" : "/dev/null");
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of recently shown frames, by frame number, evicted least recently
+ * used first once the byte budget is reached. The buffers come from the
+ * DirectBufferPool, a frame that does not fit its budget is not cached.
+ */
+public class FrameCache {
+	private final long budget;
+	private final LinkedHashMap<Long, ByteBuffer> frames = new LinkedHashMap<>(16, 0.75f, true);
+	private long used;
+
+	public FrameCache(long budget) {
+		this.budget = budget;
+	}
+
+	public long usedBytes() {
+		return used;
+	}
+
+	public int size() {
+		return frames.size();
+	}
+
+	/**
+	 * Copies the remaining bytes of the frame, without moving its position
+	 */
+	public boolean put(long frameNumber, ByteBuffer frame) {
+		Long key = Long.valueOf(frameNumber);
+		if (frames.containsKey(key)) {
+			frames.get(key); // touch
+			return true;
+		}
+
+		int size = frame.remaining();
+		if (size > budget) {
+			return false;
+		}
+
+		// recycle the eldest frame of the same size, rather than going through the pool
+		ByteBuffer copy = null;
+		Iterator<Map.Entry<Long, ByteBuffer>> it = frames.entrySet().iterator();
+		while (used + size > budget && it.hasNext()) {
+			ByteBuffer evicted = it.next().getValue();
+			it.remove();
+			used -= evicted.capacity();
+
+			if (copy == null && evicted.capacity() == size) {
+				copy = evicted;
+			} else {
+				DirectBufferPool.release(evicted);
+			}
+		}
+
+		if (copy == null) {
+			copy = DirectBufferPool.tryAcquire(size);
+			if (copy == null) {
+				return false;
+			}
+		}
+
+		copy.clear();
+		copy.put(frame.duplicate());
+		copy.flip();
+
+		frames.put(key, copy);
+		used += size;
+		return true;
+	}
+
+	/**
+	 * Returns a view of the cached frame, or null
+	 */
+	public ByteBuffer get(long frameNumber) {
+		ByteBuffer frame = frames.get(Long.valueOf(frameNumber));
+		return (frame == null) ? null : frame.duplicate();
+	}
+
+	public void clear() {
+		for (ByteBuffer frame : frames.values()) {
+			DirectBufferPool.release(frame);
+		}
+		frames.clear();
+		used = 0L;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+public enum FrameFormat {
+	RGB24("rgb24", 1), YUV420P("yuv420p", 3);
+
+	public final String pixFmt;
+	public final int planeCount;
+
+	private FrameFormat(String pixFmt, int planeCount) {
+		this.pixFmt = pixFmt;
+		this.planeCount = planeCount;
+	}
+
+	public int planeWidth(int plane, int width) {
+		return (this == YUV420P && plane > 0) ? (width + 1) / 2 : width;
+	}
+
+	public int planeHeight(int plane, int height) {
+		return (this == YUV420P && plane > 0) ? (height + 1) / 2 : height;
+	}
+
+	public int planeSize(int plane, int width, int height) {
+		int bytesPerPixel = (this == RGB24) ? 3 : 1;
+		return this.planeWidth(plane, width) * this.planeHeight(plane, height) * bytesPerPixel;
+	}
+
+	public int planeOffset(int plane, int width, int height) {
+		int offset = 0;
+		for (int i = 0; i < plane; i++) {
+			offset += this.planeSize(i, width, height);
+		}
+		return offset;
+	}
+
+	public int frameSize(int width, int height) {
+		return this.planeOffset(planeCount, width, height);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of pre-allocated frame buffers.
+ * 
+ * Neither side blocks: poll() and free() are wait-free for the consumer
+ * (render thread), and the producer (pump job) gets null from tryAcquire()
+ * when all slots are in use. The slot listener tells it when to try again.
+ */
+public class FrameRing {
+	private final ByteBuffer[] slots;
+	private final AtomicLong written, freed;
+	private long polled; // consumer only
+	private volatile boolean closed;
+	private volatile Runnable slotListener;
+
+	public FrameRing(ByteBuffer[] slots) {
+		if (slots.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		this.slots = slots;
+		this.written = new AtomicLong();
+		this.freed = new AtomicLong();
+	}
+
+	public int depth() {
+		return slots.length;
+	}
+
+	/**
+	 * Frames published, but not yet polled
+	 */
+	public int available() {
+		return (int) (written.get() - polled);
+	}
+
+	/**
+	 * Slots that are published or in use by the consumer, safe to call from
+	 * any thread
+	 */
+	public int occupied() {
+		return (int) (written.get() - freed.get());
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Runs on the consumer thread whenever a slot is freed, and on close
+	 */
+	public void setSlotListener(Runnable listener) {
+		this.slotListener = listener;
+	}
+
+	// producer
+
+	/**
+	 * Returns null when all slots are in use, or when closed
+	 */
+	public ByteBuffer tryAcquire() {
+		long w = written.get();
+		if (closed || w - freed.get() >= slots.length) {
+			return null;
+		}
+
+		ByteBuffer slot = slots[(int) (w % slots.length)];
+		slot.clear();
+		return slot;
+	}
+
+	public void publish() {
+		// single writer: an ordered store is enough to publish the slot contents
+		written.lazySet(written.get() + 1);
+	}
+
+	// consumer
+
+	public ByteBuffer poll() {
+		if (polled == written.get()) {
+			return null;
+		}
+		return slots[(int) (polled++ % slots.length)];
+	}
+
+	public void free(ByteBuffer slot) {
+		long f = freed.get();
+		if (f == polled || slots[(int) (f % slots.length)] != slot) {
+			throw new IllegalStateException("frames must be freed in the order they were polled");
+		}
+
+		// volatile store, so that it cannot be reordered with the read below
+		freed.set(f + 1);
+
+		this.notifyListener();
+	}
+
+	//
+
+	public void close() {
+		closed = true;
+
+		this.notifyListener();
+	}
+
+	private void notifyListener() {
+		Runnable listener = slotListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, HDR style: every power of two is split
+ * into 16 linear buckets, which keeps the relative error of a percentile
+ * below 1/16 over the whole range of a long. Recording is lock-free and
+ * allocates nothing.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0L) {
+			value = 0L;
+		}
+
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		for (long m; value > (m = max.get());) {
+			if (max.compareAndSet(m, value)) {
+				break;
+			}
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count.get();
+		return (n == 0L) ? 0.0 : sum.get() / (double) n;
+	}
+
+	/**
+	 * The upper bound of the bucket holding the specified fraction of the
+	 * values, 0 when nothing was recorded
+	 */
+	public long percentile(double fraction) {
+		long n = count.get();
+		if (n == 0L) {
+			return 0L;
+		}
+
+		long target = Math.max(1L, (long) Math.ceil(fraction * n));
+		long seen = 0L;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(max.get(), upperBound(i));
+			}
+		}
+		return max.get();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+		int sub = (int) (value >>> shift) - SUB_COUNT;
+		return (shift + 1) * SUB_COUNT + sub;
+	}
+
+	private static long upperBound(int index) {
+		int bucket = index / SUB_COUNT;
+		int sub = index % SUB_COUNT;
+		if (bucket == 0) {
+			return sub;
+		}
+		long lower = (long) (sub + SUB_COUNT) << (bucket - 1);
+		return lower + (1L << (bucket - 1)) - 1L;
+	}
+
+	/**
+	 * The figures at one point in time, exported as composite data over JMX
+	 */
+	public static class Snapshot {
+		private final long count, p50, p90, p99, max;
+		private final double mean;
+
+		Snapshot(Histogram histogram) {
+			this.count = histogram.count();
+			this.mean = histogram.mean();
+			this.p50 = histogram.percentile(0.50);
+			this.p90 = histogram.percentile(0.90);
+			this.p99 = histogram.percentile(0.99);
+			this.max = histogram.max();
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the pumps of all video streams on a small, shared pool of threads.
+ * 
+ * A pump moves what the pipe has per turn, after which the most urgent job
+ * is picked: highest priority first, then the earliest presentation
+ * deadline.
+ * A job with a full frame ring does not take a thread, it is queued again
+ * when the consumer frees a slot. Background movies therefore only decode
+ * when the foreground movies are buffered, and only they drop frames when
+ * the cores are oversubscribed.
+ * 
+ * A turn still blocks while the pipe of a slow decoder is empty. So beyond
+ * THREADS, a worker is added whenever jobs are queued and none is idle, up
+ * to one per active stream, and no stream waits behind a stalled one.
+ */
+public class IngestScheduler {
+	public static final int MIN_PRIORITY = 1;
+	public static final int NORM_PRIORITY = 5;
+	public static final int MAX_PRIORITY = 10;
+
+	public static int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	public static int DECODER_THREAD_BUDGET = Runtime.getRuntime().availableProcessors();
+
+	/** job wants another turn */
+	public static final int MORE = 0;
+	/** job has no slot to fill, and waits for {@link #wake(Job)} */
+	public static final int BLOCKED = 1;
+	/** job is finished */
+	public static final int DONE = 2;
+
+	private static final int IDLE = 0, QUEUED = 1, RUNNING = 2, FINISHED = 3;
+
+	public static abstract class Job {
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+		private volatile int priority = NORM_PRIORITY;
+		private int queuedPriority;
+		private long queuedDeadline;
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public void setPriority(int priority) {
+			if (priority < MIN_PRIORITY || priority > MAX_PRIORITY) {
+				throw new IllegalArgumentException();
+			}
+			this.priority = priority;
+		}
+
+		/**
+		 * System.nanoTime() by which the next unit of work must be done
+		 */
+		protected abstract long deadline();
+
+		/**
+		 * Whether a blocked job can make progress
+		 */
+		protected abstract boolean isReady();
+
+		/**
+		 * Does one unit of work, may block on I/O
+		 * 
+		 * @return MORE, BLOCKED or DONE
+		 */
+		protected abstract int pump();
+	}
+
+	private static final PriorityQueue<Job> queue = new PriorityQueue<>(16, new Comparator<Job>() {
+		@Override
+		public int compare(Job a, Job b) {
+			if (a.queuedPriority != b.queuedPriority) {
+				return (a.queuedPriority > b.queuedPriority) ? -1 : +1;
+			}
+			return Long.compare(a.queuedDeadline, b.queuedDeadline);
+		}
+	});
+	private static int jobs;
+	private static int idleWorkers;
+	private static int workers;
+
+	public static void submit(Job job) {
+		synchronized (queue) {
+			jobs++;
+		}
+		wake(job);
+	}
+
+	/**
+	 * Queues a blocked job, safe to call from any thread at any time
+	 */
+	public static void wake(Job job) {
+		if (job.state.compareAndSet(IDLE, QUEUED)) {
+			enqueue(job);
+		}
+	}
+
+	/**
+	 * Video decoder threads per ffmpeg process. A fixed share, as a running
+	 * process cannot be told when streams come and go: at most THREADS
+	 * streams are pumped at once, together they stay within the budget.
+	 */
+	public static int decoderThreads() {
+		return Math.max(1, DECODER_THREAD_BUDGET / THREADS);
+	}
+
+	public static int activeJobs() {
+		synchronized (queue) {
+			return jobs;
+		}
+	}
+
+	private static void enqueue(Job job) {
+		// snapshot, the heap must not change order under our feet
+		job.queuedPriority = job.priority;
+		job.queuedDeadline = job.deadline();
+
+		synchronized (queue) {
+			queue.add(job);
+
+			if (idleWorkers > 0) {
+				queue.notify();
+			} else if (workers < Math.max(THREADS, jobs)) {
+				workers++;
+				Thread worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						while (true) {
+							Job job = take();
+							if (job != null) {
+								runTurn(job);
+							}
+						}
+					}
+				}, "ingest-" + workers);
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+	}
+
+	private static Job take() {
+		synchronized (queue) {
+			while (queue.isEmpty()) {
+				idleWorkers++;
+				try {
+					queue.wait();
+				} catch (InterruptedException exc) {
+					// keep serving
+				} finally {
+					idleWorkers--;
+				}
+			}
+			return queue.poll();
+		}
+	}
+
+	private static void runTurn(Job job) {
+		job.state.set(RUNNING);
+
+		int result;
+		try {
+			result = job.pump();
+		} catch (RuntimeException exc) {
+			exc.printStackTrace();
+			result = DONE;
+		}
+
+		switch (result) {
+			case MORE:
+				job.state.set(QUEUED);
+				enqueue(job);
+				break;
+
+			case BLOCKED:
+				job.state.set(IDLE);
+				// the consumer may have freed a slot before we went idle
+				if (job.isReady()) {
+					wake(job);
+				}
+				break;
+
+			case DONE:
+				job.state.set(FINISHED);
+				synchronized (queue) {
+					jobs--;
+				}
+				break;
+
+			default:
+				throw new IllegalStateException();
+		}
+	}
+}
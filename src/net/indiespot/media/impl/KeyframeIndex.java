@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Timestamps of the keyframes in a file, built once in the background and
+ * persisted next to the metadata cache. Like the metadata, an index is
+ * valid for as long as the size and modification time of the file match.
+ * The least recently used are dropped beyond CACHE_BYTES.
+ */
+public class KeyframeIndex {
+	private static final int MAGIC = 0x4C4D4B31; // "LMK1"
+
+	public static long CACHE_BYTES = 4L * 1024 * 1024;
+
+	private final double[] times;
+	private final long fileSize, lastModified;
+
+	private KeyframeIndex(double[] times, long fileSize, long lastModified) {
+		this.times = times;
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+	}
+
+	private boolean isCurrent(File movieFile) {
+		return fileSize == movieFile.length() && lastModified == movieFile.lastModified();
+	}
+
+	private long bytes() {
+		return times.length * 8L;
+	}
+
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * Returns the timestamp of the last keyframe at or before the specified
+	 * time, or 0.0 if there is none
+	 */
+	public double floor(double seconds) {
+		int index = Arrays.binarySearch(times, seconds);
+		if (index >= 0) {
+			return times[index];
+		}
+		index = -(index + 1) - 1;
+		return (index < 0) ? 0.0 : times[index];
+	}
+
+	//
+
+	private static final Map<String, KeyframeIndex> loaded = new LinkedHashMap<>(16, 0.75f, true);
+	private static final Set<String> building = new HashSet<>();
+	private static final Map<String, Long> failed = new HashMap<>(); // not retried, until the file changes
+	private static long loadedBytes;
+
+	private static void cache(String path, KeyframeIndex index) {
+		KeyframeIndex replaced = loaded.put(path, index);
+		if (replaced != null) {
+			loadedBytes -= replaced.bytes();
+		}
+		loadedBytes += index.bytes();
+
+		// least recently used first
+		Iterator<KeyframeIndex> it = loaded.values().iterator();
+		while (loadedBytes > CACHE_BYTES && it.hasNext()) {
+			KeyframeIndex evicted = it.next();
+			if (evicted != index) {
+				it.remove();
+				loadedBytes -= evicted.bytes();
+			}
+		}
+	}
+
+	/**
+	 * Returns the index if it is available, never blocks on building it
+	 */
+	public static KeyframeIndex peek(File movieFile) throws IOException {
+		String path = movieFile.getCanonicalPath();
+		synchronized (loaded) {
+			KeyframeIndex index = loaded.get(path);
+			if (index != null && !index.isCurrent(movieFile)) {
+				loaded.remove(path);
+				loadedBytes -= index.bytes();
+				index = null;
+			}
+			if (index == null && !building.contains(path)) {
+				index = load(movieFile, path);
+				if (index != null) {
+					cache(path, index);
+				}
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Starts building the index in the background, if it is not available
+	 */
+	public static void request(final File movieFile) throws IOException {
+		final String path = movieFile.getCanonicalPath();
+		synchronized (loaded) {
+			Long failedVersion = failed.get(path);
+			if (failedVersion != null && failedVersion.longValue() == movieFile.lastModified()) {
+				return;
+			}
+			if (peek(movieFile) != null || !building.add(path)) {
+				return;
+			}
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				KeyframeIndex index = null;
+				long fileSize = movieFile.length();
+				long lastModified = movieFile.lastModified();
+				try {
+					double[] times = FFmpeg.extractKeyframeTimes(movieFile);
+					if (times.length == 0) {
+						// seeking from 0.0 every time would be worse than no index at all
+						throw new IOException("no keyframes found");
+					}
+					Arrays.sort(times);
+					index = new KeyframeIndex(times, fileSize, lastModified);
+					save(path, index);
+				} catch (IOException | RuntimeException exc) {
+					System.err.println("KeyframeIndex: failed to index " + path + ": " + exc.getMessage());
+				} finally {
+					synchronized (loaded) {
+						building.remove(path);
+						if (index != null) {
+							failed.remove(path);
+							cache(path, index);
+						} else {
+							failed.put(path, Long.valueOf(lastModified));
+						}
+					}
+				}
+			}
+		}, "keyframe-index");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	//
+
+	private static File indexFile(String path) {
+		return new File(new File(MetadataCache.CACHE_DIR, "keyframes"), MetadataCache.cacheKey(path) + ".idx");
+	}
+
+	private static KeyframeIndex load(File movieFile, String path) {
+		File file = indexFile(path);
+		if (!MetadataCache.PERSISTENT || !file.exists()) {
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || !in.readUTF().equals(path)) {
+					return null;
+				}
+				long fileSize = in.readLong();
+				long lastModified = in.readLong();
+				if (fileSize != movieFile.length() || lastModified != movieFile.lastModified()) {
+					return null; // stale
+				}
+
+				double[] times = new double[in.readInt()];
+				for (int i = 0; i < times.length; i++) {
+					times[i] = in.readDouble();
+				}
+				return new KeyframeIndex(times, fileSize, lastModified);
+			} finally {
+				in.close();
+			}
+		} catch (IOException exc) {
+			return null;
+		}
+	}
+
+	private static void save(String path, KeyframeIndex index) throws IOException {
+		if (!MetadataCache.PERSISTENT) {
+			return;
+		}
+
+		File file = indexFile(path);
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("failed to create dir: " + dir.getAbsolutePath());
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeUTF(path);
+			out.writeLong(index.fileSize);
+			out.writeLong(index.lastModified);
+			out.writeInt(index.times.length);
+			for (double time : index.times) {
+				out.writeDouble(time);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers probed metadata per file, keyed by canonical path, size and
+ * modification time, so that repeated opens and seeks do not launch ffmpeg.
+ * 
+ * Entries are appended to a small binary log, the last entry for a path wins.
+ * The log is locked while it is read or written, so that processes can share
+ * CACHE_DIR.
+ */
+public class MetadataCache {
+	public static File CACHE_DIR = new File(System.getProperty("user.home"), ".libmedia");
+	public static boolean PERSISTENT = true;
+
+	private static final int MAGIC = 0x4C4D4D31; // "LMM1"
+
+	private static class Entry {
+		final long size, lastModified;
+		final VideoMetadata metadata;
+
+		Entry(long size, long lastModified, VideoMetadata metadata) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.metadata = metadata;
+		}
+	}
+
+	private static Map<String, Entry> entries = new HashMap<>();
+	private static boolean loaded;
+
+	public static VideoMetadata get(File movieFile) throws IOException {
+		VideoMetadata metadata = peek(movieFile);
+		if (metadata == null) {
+			metadata = FFmpeg.extractMetadata(movieFile);
+			put(movieFile, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Returns the cached metadata, or null, never probes
+	 */
+	public static synchronized VideoMetadata peek(File movieFile) throws IOException {
+		load();
+
+		Entry entry = entries.get(movieFile.getCanonicalPath());
+		if (entry == null || entry.size != movieFile.length() || entry.lastModified != movieFile.lastModified()) {
+			return null;
+		}
+		return entry.metadata;
+	}
+
+	public static synchronized void put(File movieFile, VideoMetadata metadata) throws IOException {
+		load();
+
+		String path = movieFile.getCanonicalPath();
+		Entry entry = new Entry(movieFile.length(), movieFile.lastModified(), metadata);
+		entries.put(path, entry);
+
+		if (PERSISTENT) {
+			File file = cacheFile();
+			try {
+				RandomAccessFile raf = open(file);
+				try {
+					FileChannel channel = raf.getChannel();
+					channel.lock();
+
+					ByteArrayOutputStream record = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(record);
+					if (channel.size() == 0L) {
+						out.writeInt(MAGIC);
+					}
+					write(out, path, entry);
+					writeFully(channel, record.toByteArray(), channel.size());
+				} finally {
+					raf.close(); // releases the lock
+				}
+			} catch (IOException exc) {
+				System.err.println("MetadataCache: failed to write " + file.getAbsolutePath() + ": " + exc.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Name of the cache file of a movie, unique per canonical path
+	 */
+	static String cacheKey(String path) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	private static File cacheFile() {
+		return new File(CACHE_DIR, "metadata.cache");
+	}
+
+	private static void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		File file = cacheFile();
+		if (!PERSISTENT || !file.exists()) {
+			return;
+		}
+
+		try {
+			RandomAccessFile raf = open(file);
+			try {
+				FileChannel channel = raf.getChannel();
+				channel.lock();
+
+				byte[] log = new byte[(int) channel.size()];
+				ByteBuffer target = ByteBuffer.wrap(log);
+				while (target.hasRemaining()) {
+					if (channel.read(target, target.position()) == -1) {
+						throw new EOFException();
+					}
+				}
+
+				// the end of the last complete record
+				int complete = 0;
+				int records = 0;
+				ByteArrayInputStream bytes = new ByteArrayInputStream(log);
+				DataInputStream in = new DataInputStream(bytes);
+				try {
+					if (log.length > 0) {
+						if (in.readInt() != MAGIC) {
+							throw new IOException("unknown format");
+						}
+						complete = log.length - bytes.available();
+					}
+					while (bytes.available() > 0) {
+						String path = in.readUTF();
+						Entry entry = read(in);
+						entries.put(path, entry);
+						records++;
+						complete = log.length - bytes.available();
+					}
+				} catch (EOFException exc) {
+					// a torn last record, from a writer that died halfway
+				}
+
+				if (records > entries.size() * 2) {
+					compact(channel);
+				} else if (complete < log.length) {
+					channel.truncate(complete);
+				}
+			} finally {
+				raf.close(); // releases the lock
+			}
+		} catch (ClosedByInterruptException | FileLockInterruptionException exc) {
+			// says nothing about the log, read it again next time
+			loaded = false;
+		} catch (IOException exc) {
+			System.err.println("MetadataCache: discarding " + file.getAbsolutePath() + ": " + exc.getMessage());
+			entries.clear();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Rewrites the locked log in place, with only the last entry per path
+	 */
+	private static void compact(FileChannel channel) throws IOException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(log);
+		out.writeInt(MAGIC);
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			write(out, e.getKey(), e.getValue());
+		}
+
+		channel.truncate(0L);
+		writeFully(channel, log.toByteArray(), 0L);
+	}
+
+	private static RandomAccessFile open(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("failed to create dir: " + dir.getAbsolutePath());
+		}
+		return new RandomAccessFile(file, "rw");
+	}
+
+	private static void writeFully(FileChannel channel, byte[] data, long position) throws IOException {
+		ByteBuffer source = ByteBuffer.wrap(data);
+		while (source.hasRemaining()) {
+			channel.write(source, position + source.position());
+		}
+	}
+
+	private static void write(DataOutputStream out, String path, Entry entry) throws IOException {
+		VideoMetadata m = entry.metadata;
+		out.writeUTF(path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.lastModified);
+		out.writeInt(m.width);
+		out.writeInt(m.height);
+		out.writeFloat(m.framerate);
+		out.writeDouble(m.duration);
+		out.writeUTF(m.pixelFormat == null ? "" : m.pixelFormat);
+		out.writeInt(m.audioSampleRate);
+		out.writeInt(m.audioChannels);
+	}
+
+	private static Entry read(DataInputStream in) throws IOException {
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		int width = in.readInt();
+		int height = in.readInt();
+		float framerate = in.readFloat();
+		double duration = in.readDouble();
+		String pixelFormat = in.readUTF();
+		int audioSampleRate = in.readInt();
+		int audioChannels = in.readInt();
+
+		VideoMetadata metadata = new VideoMetadata(width, height, framerate, duration, pixelFormat.isEmpty() ? null : pixelFormat, audioSampleRate, audioChannels);
+		return new Entry(size, lastModified, metadata);
+	}
+}
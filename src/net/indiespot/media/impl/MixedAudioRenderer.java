@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import net.indiespot.media.AudioRenderer;
+import net.indiespot.media.AudioStream;
+import net.indiespot.media.Movie;
+
+import craterstudio.math.EasyMath;
+
+/**
+ * Plays its stream through the shared {@link AudioMixer}, rather than
+ * through an OpenAL source of its own.
+ * 
+ * The clock follows the samples of this stream that the mixer played. A
+ * pause is heard once the chunks that were already mixed have played out.
+ */
+public class MixedAudioRenderer extends AudioRenderer {
+	private State state = State.INIT;
+	private boolean pauseOnStart, stopped;
+	private float volume = 1.0f;
+	private int gain = 1 << 15; // fixed point volume
+
+	private AudioMixer mixer;
+	private ByteBuffer chunk;
+	private ShortBuffer chunkShorts;
+	private short[] pcm;
+	private boolean endOfSamples;
+
+	// samples of this stream in each mixed chunk, from firstChunk on
+	private int[] chunkCounts = new int[16];
+	private int countHead, countSize;
+	private long firstChunk;
+	private long samplesRetired, samplesMixed;
+
+	@Override
+	public void init(AudioStream audioStream, float frameRate) throws IOException {
+		super.init(audioStream, frameRate);
+
+		// does not touch OpenAL until the first tick
+		int chunkSamples = AudioMixer.CHUNK_SAMPLES;
+		this.chunk = DirectBufferPool.acquire(chunkSamples * 4);
+		this.chunkShorts = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		this.pcm = new short[chunkSamples * 2];
+	}
+
+	@Override
+	public State getState() {
+		return state;
+	}
+
+	@Override
+	public void pause() {
+		if (state == State.PLAYING) {
+			state = State.PAUSED;
+		} else if (state == State.INIT) {
+			pauseOnStart = true;
+		}
+	}
+
+	@Override
+	public void resume() {
+		if (state == State.PAUSED) {
+			state = State.PLAYING;
+		}
+		pauseOnStart = false;
+	}
+
+	@Override
+	public void stop() {
+		if (state != State.CLOSED) {
+			state = State.CLOSED;
+			stopped = true;
+		}
+	}
+
+	@Override
+	public float getVolume() {
+		return volume;
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		if (!EasyMath.isBetween(volume, 0.0f, 1.0f)) {
+			throw new IllegalArgumentException();
+		}
+		this.volume = volume;
+		this.gain = Math.round(volume * (1 << 15));
+	}
+
+	int sampleRate() {
+		return audioStream.sampleRate;
+	}
+
+	boolean isMixing() {
+		return state == State.PLAYING && !endOfSamples;
+	}
+
+	/**
+	 * Adds the next chunk of this stream to the mix, and remembers how many
+	 * samples it contributed to the chunk, for the clock
+	 */
+	void mixInto(int[] mix, long chunkIndex) {
+		int count = 0;
+		if (this.isMixing()) {
+			chunk.clear();
+			chunk.limit(Math.min(chunk.capacity(), mix.length * 2));
+			count = super.readPrefetched(chunk);
+
+			if (count == -1) {
+				endOfSamples = true;
+				count = 0;
+			} else {
+				int values = count * 2;
+				chunkShorts.clear();
+				chunkShorts.get(pcm, 0, values);
+
+				samplesMixed += count;
+
+				int gain = this.gain;
+				for (int i = 0; i < values; i++) {
+					mix[i] += (pcm[i] * gain) >> 15;
+				}
+			}
+		}
+
+		this.onMixed(chunkIndex, count);
+	}
+
+	private void onMixed(long chunkIndex, int count) {
+		this.retire(mixer.playedSamples());
+
+		if (countSize == 0) {
+			firstChunk = chunkIndex;
+		}
+		if (countSize == chunkCounts.length) {
+			int[] grown = new int[chunkCounts.length * 2];
+			for (int i = 0; i < countSize; i++) {
+				grown[i] = chunkCounts[(countHead + i) % chunkCounts.length];
+			}
+			chunkCounts = grown;
+			countHead = 0;
+		}
+		chunkCounts[(countHead + countSize++) % chunkCounts.length] = count;
+	}
+
+	/**
+	 * Samples of this stream played by the mixer
+	 */
+	public long getPlayedSamples() {
+		if (mixer == null) {
+			return 0L;
+		}
+
+		long played = mixer.playedSamples();
+		int chunkSamples = mixer.chunkSamples;
+		this.retire(played);
+
+		if (countSize == 0 || played <= firstChunk * chunkSamples) {
+			return samplesRetired;
+		}
+		return samplesRetired + Math.min(chunkCounts[countHead], played - firstChunk * chunkSamples);
+	}
+
+	private void retire(long played) {
+		int chunkSamples = mixer.chunkSamples;
+		while (countSize > 0 && (firstChunk + 1) * chunkSamples <= played) {
+			samplesRetired += chunkCounts[countHead];
+			countHead = (countHead + 1) % chunkCounts.length;
+			countSize--;
+			firstChunk++;
+		}
+	}
+
+	@Override
+	public boolean tick(Movie sync) {
+		switch (state) {
+			case INIT:
+				mixer = AudioMixer.shared();
+				mixer.attach(this);
+				state = pauseOnStart ? State.PAUSED : State.PLAYING;
+				break;
+
+			case CLOSED:
+				if (stopped) {
+					stopped = false;
+					sync.onEndOfAudio();
+				}
+				return false;
+
+			default:
+				break;
+		}
+
+		mixer.tick();
+		long played = this.getPlayedSamples();
+
+		if (endOfSamples && played >= samplesMixed) {
+			// everything this stream contributed was played
+			state = State.CLOSED;
+			sync.onEndOfAudio();
+			return false;
+		}
+
+		sync.onAudioClock(played / (double) audioStream.sampleRate);
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		state = State.CLOSED;
+		if (mixer != null) {
+			mixer.detach(this);
+			mixer = null;
+		}
+		if (chunk != null) {
+			DirectBufferPool.release(chunk);
+			chunk = null;
+		}
+		super.close();
+	}
+}
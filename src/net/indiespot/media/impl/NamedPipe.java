@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+class NamedPipe {
+	/**
+	 * Fifos made ahead of time by the same mkfifo call, so that most opens
+	 * and seeks launch no mkfifo process at all
+	 */
+	public static int SPARE_FIFOS = 8;
+
+	private static final Deque<File> spares = new ArrayDeque<>();
+
+	private final File file;
+
+	private NamedPipe(File file) {
+		this.file = file;
+	}
+
+	public static NamedPipe create() throws IOException {
+		return create(1)[0];
+	}
+
+	public static NamedPipe[] create(int count) throws IOException {
+		NamedPipe[] pipes = new NamedPipe[count];
+		synchronized (spares) {
+			if (spares.size() < count) {
+				mkfifo(count - spares.size() + Math.max(0, SPARE_FIFOS));
+			}
+			for (int i = 0; i < count; i++) {
+				pipes[i] = new NamedPipe(spares.removeFirst());
+			}
+		}
+		return pipes;
+	}
+
+	private static void mkfifo(int count) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add("mkfifo");
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			File file = File.createTempFile("libmedia-", ".fifo");
+			if (!file.delete()) {
+				throw new IOException("failed to reserve fifo path: " + file.getAbsolutePath());
+			}
+			command.add(file.getAbsolutePath());
+			files.add(file);
+		}
+
+		Process process = new ProcessBuilder().command(command).start();
+		try {
+			if (process.waitFor() != 0) {
+				for (File file : files) {
+					file.delete();
+				}
+				throw new IOException("mkfifo failed for: " + files);
+			}
+		} catch (InterruptedException exc) {
+			throw new InterruptedIOException();
+		}
+
+		for (File file : files) {
+			file.deleteOnExit();
+			spares.addLast(file);
+		}
+	}
+
+	public String path() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * The returned channel connects on the first read, as opening a fifo
+	 * blocks until the writer (ffmpeg) opened its end.
+	 */
+	public PipeChannel openChannel() {
+		return new PipeChannel();
+	}
+
+	class PipeChannel implements ReadableByteChannel {
+		private FileChannel channel;
+		private boolean open = true;
+		private boolean connecting;
+
+		/**
+		 * Blocks until the writer opened its end, done by the first read if
+		 * not called before
+		 */
+		public void connect() throws IOException {
+			synchronized (this) {
+				if (!open) {
+					throw new ClosedChannelException();
+				}
+				if (channel != null) {
+					return;
+				}
+				// from here on, close() keeps the pipe open for writing until we are through
+				connecting = true;
+			}
+
+			FileChannel connected = null;
+			try {
+				connected = FileChannel.open(file.toPath(), READ);
+			} finally {
+				synchronized (this) {
+					connecting = false;
+					this.notifyAll();
+
+					if (connected != null) {
+						if (!open) {
+							connected.close();
+							throw new ClosedChannelException();
+						}
+						channel = connected;
+					}
+				}
+			}
+
+			// both ends are connected, the path is no longer needed
+			file.delete();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			this.connect();
+
+			// reads straight into direct buffers, no heap copy
+			return channel.read(dst);
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return open;
+		}
+
+		/**
+		 * Closes the channel if the writer never connected, for when the
+		 * writer is gone: the reader would block forever
+		 */
+		public void abandon() throws IOException {
+			synchronized (this) {
+				if (channel != null) {
+					return; // whatever was written can still be read
+				}
+			}
+			this.close();
+		}
+
+		@Override
+		public void close() throws IOException {
+			FileChannel connected;
+			boolean blocked;
+			synchronized (this) {
+				if (!open) {
+					return;
+				}
+				open = false;
+				connected = channel;
+				blocked = connecting;
+			}
+
+			if (connected != null) {
+				connected.close();
+			} else if (blocked) {
+				// release the reader that is opening the other end, the write end
+				// must stay open until it got through, or it may block after all
+				FileChannel release = null;
+				try {
+					release = FileChannel.open(file.toPath(), READ, WRITE);
+					synchronized (this) {
+						while (connecting) {
+							this.wait();
+						}
+					}
+				} catch (IOException exc) {
+					// already gone
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				} finally {
+					if (release != null) {
+						release.close();
+					}
+				}
+			}
+			file.delete();
+		}
+	}
+}
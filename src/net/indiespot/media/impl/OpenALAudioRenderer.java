@@ -31,9 +31,11 @@
 package net.indiespot.media.impl;
 
 import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.AL11.AL_SAMPLE_OFFSET;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import net.indiespot.media.AudioRenderer;
 import net.indiespot.media.Movie;
@@ -44,10 +46,29 @@ import craterstudio.util.HighLevel;
 import craterstudio.util.concur.SimpleBlockingQueue;
 
 public class OpenALAudioRenderer extends AudioRenderer {
+	// bounds of the audio queued ahead of playback, which adapts to the load
+	public static float MIN_LATENCY = 0.050f;
+	public static float MAX_LATENCY = 0.500f;
+	public static float INITIAL_LATENCY = 0.100f;
+
+	// seconds without (near) underruns, before the latency is lowered a notch
+	public static float SHRINK_AFTER = 2.0f;
 
 	private int lastBuffersProcessed = 0;
 	private boolean hasMoreSamples = true;
 
+	// sample counts of the queued buffers, oldest first
+	private int[] queuedSamples = new int[16];
+	private int queuedHead, queuedCount;
+	private long queuedTotal;
+	private long samplesUnqueued;
+
+	// buffer names are generated once, unqueued buffers are refilled
+	private int[] buffers = new int[16];
+	private int buffersGenerated;
+	private int[] idleBuffers = new int[16];
+	private int idleCount;
+
 	private static enum ActionType {
 		ADJUST_VOLUME, PAUSE_AUDIO, RESUME_AUDIO, STOP_AUDIO
 	}
@@ -88,13 +109,18 @@ public class OpenALAudioRenderer extends AudioRenderer {
 
 	//
 
+	// a pause before the source started, it must not play a single chunk
+	private volatile boolean pauseOnStart;
+
 	@Override
 	public void pause() {
+		pauseOnStart = true;
 		pendingActions.put(new Action(ActionType.PAUSE_AUDIO, null));
 	}
 
 	@Override
 	public void resume() {
+		pauseOnStart = false;
 		pendingActions.put(new Action(ActionType.RESUME_AUDIO, null));
 	}
 
@@ -119,13 +145,85 @@ public class OpenALAudioRenderer extends AudioRenderer {
 		}
 	}
 
-	private void buffer() {
-		// buffer 1sec of audio
-		for (int i = 0; i < 5 || i < frameRate * 0.1f; i++) {
-			this.enqueueNextSamples();
+	private int targetSamples; // queued ahead of playback
+	private long tickPeak; // nanos, decays slowly
+	private long lastTickAt, calmSince;
+	private boolean starved;
+	private int dropouts, nearUnderruns;
+
+	private boolean buffer() {
+		if (targetSamples == 0) {
+			this.setTargetSamples(Math.round(INITIAL_LATENCY * audioStream.sampleRate));
 		}
 
-		alSourcePlay(alSource);
+		if (!super.isPrefetched(targetSamples)) {
+			return false;
+		}
+		this.fillQueue();
+
+		if (!pauseOnStart) {
+			alSourcePlay(alSource);
+		}
+		return true;
+	}
+
+	/**
+	 * Queues chunks until the target latency is reached, or the prefetched
+	 * samples run out
+	 */
+	private void fillQueue() {
+		long ahead = this.getQueuedSamples() - this.getPlayedSamples();
+		while (ahead < targetSamples) {
+			int queued = this.enqueueNextSamples();
+			if (queued == 0) {
+				break;
+			}
+			ahead += queued;
+		}
+	}
+
+	private void setTargetSamples(int samples) {
+		int min = Math.round(MIN_LATENCY * audioStream.sampleRate);
+		int max = Math.round(MAX_LATENCY * audioStream.sampleRate);
+		targetSamples = Math.max(min, Math.min(max, samples));
+		calmSince = System.nanoTime();
+	}
+
+	/**
+	 * Grows the queue when a tick barely made it in time, and shrinks it
+	 * again once the ticks keep up easily
+	 */
+	private void adaptLatency(long now) {
+		int chunkSamples = (int) (audioStream.sampleRate / frameRate);
+		long tickSamples = tickPeak * audioStream.sampleRate / 1_000_000_000L;
+		long ahead = this.getQueuedSamples() - this.getPlayedSamples();
+
+		if (ahead < tickSamples + chunkSamples) {
+			// the next tick may well come too late
+			nearUnderruns++;
+			this.setTargetSamples(targetSamples + chunkSamples);
+		} else if (now - calmSince > (long) (SHRINK_AFTER * 1_000_000_000L)) {
+			int floor = (int) (2 * tickSamples + chunkSamples);
+			this.setTargetSamples(Math.max(floor, targetSamples - chunkSamples));
+		}
+	}
+
+	/**
+	 * Seconds of audio the renderer aims to keep queued
+	 */
+	public float getLatency() {
+		return targetSamples / (float) audioStream.sampleRate;
+	}
+
+	/**
+	 * Times the source ran dry
+	 */
+	public int getDropouts() {
+		return dropouts;
+	}
+
+	public int getNearUnderruns() {
+		return nearUnderruns;
 	}
 
 	@SuppressWarnings("incomplete-switch")
@@ -138,8 +236,9 @@ public class OpenALAudioRenderer extends AudioRenderer {
 				return true;
 
 			case BUFFERING:
-				this.buffer();
-				this.state = State.PLAYING;
+				if (this.buffer()) {
+					this.state = pauseOnStart ? State.PAUSED : State.PLAYING;
+				}
 				return true;
 
 			case CLOSED:
@@ -186,36 +285,41 @@ public class OpenALAudioRenderer extends AudioRenderer {
 				break;
 
 			case PAUSED:
+				lastTickAt = 0L; // a pause is not a slow tick
 				return true;
 
 			default:
 				throw new IllegalStateException();
 		}
 
+		long now = System.nanoTime();
+		if (lastTickAt != 0L) {
+			tickPeak = Math.max(now - lastTickAt, tickPeak - tickPeak / 64);
+		}
+		lastTickAt = now;
+
 		int currentBuffersProcessed = alGetSourcei(alSource, AL_BUFFERS_PROCESSED);
 		int toDiscard = currentBuffersProcessed - lastBuffersProcessed;
 		lastBuffersProcessed = currentBuffersProcessed;
 
-		if (toDiscard == 0) {
-			return true;
-		}
 		if (toDiscard < 0) {
 			throw new IllegalStateException();
 		}
 
 		for (int i = 0; i < toDiscard; i++) {
 			int buffer = alSourceUnqueueBuffers(alSource);
-			alDeleteBuffers(buffer);
+			this.onUnqueued(buffer);
 
 			this.lastBuffersProcessed--;
 			sync.onRenderedAudioBuffer();
-
-			this.enqueueNextSamples();
 		}
 
 		switch (alGetSourcei(alSource, AL_SOURCE_STATE)) {
 			case AL_PLAYING:
-				// ok
+				this.adaptLatency(now);
+
+				// tops up what was played, and what an underrun left out
+				this.fillQueue();
 				break;
 
 			case AL_STOPPED:
@@ -225,7 +329,7 @@ public class OpenALAudioRenderer extends AudioRenderer {
 						if (buffer < 0) {
 							break;
 						}
-						alDeleteBuffers(buffer);
+						this.onUnqueued(buffer);
 					}
 					this.state = State.CLOSED;
 				}
@@ -235,7 +339,20 @@ public class OpenALAudioRenderer extends AudioRenderer {
 				}
 
 				if (this.state != State.CLOSED && this.hasMoreSamples) {
-					this.state = State.BUFFERING;
+					if (!starved) {
+						starved = true;
+						dropouts++;
+						this.setTargetSamples(targetSamples * 2);
+					}
+
+					// refill in place, once there is enough to not run dry right away
+					if (super.isPrefetched(targetSamples)) {
+						this.fillQueue();
+						if (queuedCount > 0) {
+							alSourcePlay(alSource);
+							starved = false;
+						}
+					}
 				} else {
 					sync.onEndOfAudio();
 					Streams.safeClose(this);
@@ -247,23 +364,103 @@ public class OpenALAudioRenderer extends AudioRenderer {
 				throw new IllegalStateException("unexpected state");
 		}
 
+		sync.onAudioClock(this.getPlayedSamples() / (double) audioStream.sampleRate);
+
 		return true;
 	}
 
-	private void enqueueNextSamples() {
-		if (!this.hasMoreSamples) {
+	/**
+	 * Samples played since the start of the stream: the unqueued buffers plus
+	 * the position of the source in its queue. Stands still while paused.
+	 */
+	public long getPlayedSamples() {
+		if (alSource == 0) {
+			return samplesUnqueued;
+		}
+		if (alGetSourcei(alSource, AL_SOURCE_STATE) == AL_STOPPED) {
+			// the offset is reset: the processed buffers were played, the rest is yet to come
+			int processed = Math.min(queuedCount, alGetSourcei(alSource, AL_BUFFERS_PROCESSED));
+			long played = samplesUnqueued;
+			for (int i = 0; i < processed; i++) {
+				played += queuedSamples[(queuedHead + i) % queuedSamples.length];
+			}
+			return played;
+		}
+		return samplesUnqueued + alGetSourcei(alSource, AL_SAMPLE_OFFSET);
+	}
+
+	/**
+	 * Samples queued since the start of the stream
+	 */
+	private long getQueuedSamples() {
+		return samplesUnqueued + queuedTotal;
+	}
+
+	private void onQueued(int samples) {
+		if (queuedCount == queuedSamples.length) {
+			int[] grown = new int[queuedSamples.length * 2];
+			for (int i = 0; i < queuedCount; i++) {
+				grown[i] = queuedSamples[(queuedHead + i) % queuedSamples.length];
+			}
+			queuedSamples = grown;
+			queuedHead = 0;
+		}
+		queuedSamples[(queuedHead + queuedCount++) % queuedSamples.length] = samples;
+		queuedTotal += samples;
+	}
+
+	private void onUnqueued(int buffer) {
+		if (buffer > 0 && idleCount < idleBuffers.length) {
+			idleBuffers[idleCount++] = buffer;
+		}
+
+		if (queuedCount == 0) {
 			return;
 		}
+		int samples = queuedSamples[queuedHead];
+		queuedHead = (queuedHead + 1) % queuedSamples.length;
+		queuedCount--;
+		queuedTotal -= samples;
+		samplesUnqueued += samples;
+	}
+
+	/**
+	 * @return the number of samples queued, 0 at the end, or on an underrun
+	 */
+	private int enqueueNextSamples() {
+		if (!this.hasMoreSamples) {
+			return 0;
+		}
 
 		ByteBuffer samples = super.loadNextSamples();
 		if (samples == null) {
 			this.hasMoreSamples = false;
-			return;
+			return 0;
+		}
+		if (!samples.hasRemaining()) {
+			return 0; // underrun, try again next tick
 		}
 
-		int buffer = alGenBuffers();
+		int buffer = this.nextBuffer();
+		int count = samples.remaining() / (audioStream.numChannels * audioStream.bytesPerSample);
+		this.onQueued(count);
 		alBufferData(buffer, AL_FORMAT_STEREO16, samples, audioStream.sampleRate);
 		alSourceQueueBuffers(this.alSource, buffer);
+		return count;
+	}
+
+	private int nextBuffer() {
+		if (idleCount > 0) {
+			return idleBuffers[--idleCount];
+		}
+
+		int buffer = alGenBuffers();
+		if (buffersGenerated == buffers.length) {
+			buffers = Arrays.copyOf(buffers, buffers.length * 2);
+			idleBuffers = new int[buffers.length];
+		}
+		buffers[buffersGenerated++] = buffer;
+		return buffer;
 	}
 
 	public void await() throws IOException {
@@ -277,6 +474,13 @@ public class OpenALAudioRenderer extends AudioRenderer {
 			alSourceStop(this.alSource);
 			alDeleteSources(this.alSource);
 			this.alSource = 0;
+
+			// detached from the source, whether they were queued or not
+			for (int i = 0; i < buffersGenerated; i++) {
+				alDeleteBuffers(buffers[i]);
+			}
+			buffersGenerated = 0;
+			idleCount = 0;
 			this.state = State.CLOSED;
 		}
 
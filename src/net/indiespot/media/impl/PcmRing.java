@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring of PCM bytes.
+ * 
+ * The consumer (render thread) never blocks: read() takes whatever is
+ * available, which may be less than asked for. The producer (ingest thread)
+ * writes straight into the free region of the ring, and parks while the
+ * ring is full.
+ */
+public class PcmRing {
+	private final ByteBuffer data;
+	private final ByteBuffer producerView, consumerView;
+	private final int capacity;
+	private final AtomicLong written, read;
+	private volatile Thread parkedProducer;
+	private volatile boolean closed, ended;
+
+	public PcmRing(ByteBuffer data) {
+		if (data.capacity() == 0) {
+			throw new IllegalArgumentException();
+		}
+		this.data = data;
+		this.capacity = data.capacity();
+		this.producerView = data.duplicate();
+		this.consumerView = data.duplicate();
+		this.written = new AtomicLong();
+		this.read = new AtomicLong();
+	}
+
+	public ByteBuffer buffer() {
+		return data;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Bytes written, but not yet read, safe to call from any thread
+	 */
+	public int available() {
+		return (int) (written.get() - read.get());
+	}
+
+	/**
+	 * The producer wrote its last bytes
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	// producer
+
+	/**
+	 * Parks until there is room, returns the contiguous free region, or null
+	 * when closed
+	 */
+	public ByteBuffer acquire() {
+		long w = written.get();
+		while (w - read.get() >= capacity) {
+			if (closed) {
+				return null;
+			}
+
+			parkedProducer = Thread.currentThread();
+			if (w - read.get() >= capacity && !closed) {
+				LockSupport.park(this);
+			}
+			parkedProducer = null;
+		}
+		if (closed) {
+			return null;
+		}
+
+		int offset = (int) (w % capacity);
+		int free = capacity - (int) (w - read.get());
+		producerView.limit(Math.min(capacity, offset + free));
+		producerView.position(offset);
+		return producerView;
+	}
+
+	public void commit(int bytes) {
+		// single writer: an ordered store is enough to publish the bytes
+		written.lazySet(written.get() + bytes);
+	}
+
+	public void end() {
+		ended = true;
+	}
+
+	// consumer
+
+	/**
+	 * Copies what is available into the buffer, in multiples of the frame
+	 * size. Never blocks.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	public int read(ByteBuffer dst, int frameSize) {
+		long r = read.get();
+		int count = Math.min(available(), dst.remaining());
+		count -= count % frameSize;
+
+		for (int done = 0; done < count;) {
+			int offset = (int) ((r + done) % capacity);
+			int chunk = Math.min(count - done, capacity - offset);
+			consumerView.limit(offset + chunk);
+			consumerView.position(offset);
+			dst.put(consumerView);
+			done += chunk;
+		}
+
+		if (count > 0) {
+			// volatile store, so that it cannot be reordered with the read below
+			read.set(r + count);
+
+			Thread producer = parkedProducer;
+			if (producer != null) {
+				LockSupport.unpark(producer);
+			}
+		}
+		return count;
+	}
+
+	//
+
+	public void close() {
+		closed = true;
+
+		Thread producer = parkedProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the whole pipeline of a single player: from
+ * the pipe, through the frame queue and the AV-sync, to the texture upload.
+ * 
+ * Each player registers its metrics as an MXBean, named after its movie:
+ * net.indiespot.media:type=Pipeline,movie=...,id=...
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+	public static boolean JMX_EXPORT = true;
+
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final String movie;
+	private ObjectName name;
+
+	public final Histogram pipeRead = new Histogram(); // nanos per frame
+	public final Histogram queueDepth = new Histogram(); // decoded frames, at every poll
+	public final Histogram textureUpload = new Histogram();
+	public final Histogram avDrift = new Histogram(); // nanos, either direction
+	public final Histogram seekLatency = new Histogram(); // request, to the reopened movie
+	public final Histogram timeToFirstFrame = new Histogram(); // open or seek, to the first upload
+
+	public final AtomicLong framesDropped = new AtomicLong(); // by the pump, too late to decode
+	public final AtomicLong framesSkipped = new AtomicLong(); // decoded, but too late to show
+	public final AtomicLong audioUnderruns = new AtomicLong();
+	private volatile long lastAvDrift;
+
+	public PipelineMetrics(String movie) {
+		this.movie = movie;
+	}
+
+	/**
+	 * Creates the metrics, exported over JMX unless disabled
+	 */
+	public static PipelineMetrics register(String movie) {
+		PipelineMetrics metrics = new PipelineMetrics(movie);
+		if (JMX_EXPORT) {
+			try {
+				ObjectName name = new ObjectName("net.indiespot.media:type=Pipeline,movie=" + ObjectName.quote(movie) + ",id=" + ids.incrementAndGet());
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+				metrics.name = name;
+			} catch (JMException exc) {
+				exc.printStackTrace();
+			}
+		}
+		return metrics;
+	}
+
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException exc) {
+			// already gone
+		}
+		name = null;
+	}
+
+	/**
+	 * Video time minus audio time of a shown frame, positive when the video
+	 * runs ahead
+	 */
+	public void recordAvDrift(long nanos) {
+		lastAvDrift = nanos;
+		avDrift.record(Math.abs(nanos));
+	}
+
+	//
+
+	@Override
+	public String getMovie() {
+		return movie;
+	}
+
+	@Override
+	public Histogram.Snapshot getPipeReadNanos() {
+		return pipeRead.snapshot();
+	}
+
+	@Override
+	public Histogram.Snapshot getQueueDepth() {
+		return queueDepth.snapshot();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	@Override
+	public long getFramesSkipped() {
+		return framesSkipped.get();
+	}
+
+	@Override
+	public Histogram.Snapshot getTextureUploadNanos() {
+		return textureUpload.snapshot();
+	}
+
+	@Override
+	public long getAudioUnderruns() {
+		return audioUnderruns.get();
+	}
+
+	@Override
+	public Histogram.Snapshot getAvDriftNanos() {
+		return avDrift.snapshot();
+	}
+
+	@Override
+	public long getLastAvDriftNanos() {
+		return lastAvDrift;
+	}
+
+	@Override
+	public Histogram.Snapshot getSeekLatencyNanos() {
+		return seekLatency.snapshot();
+	}
+
+	@Override
+	public Histogram.Snapshot getTimeToFirstFrameNanos() {
+		return timeToFirstFrame.snapshot();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ffmpeg process, owned by the streams it writes to: once all of them
+ * are closed, the process is destroyed and reaped.
+ */
+class ProcessHandle {
+	private final Process process;
+	private final String name;
+	private final AtomicInteger owners;
+
+	ProcessHandle(Process process, String name, int owners) {
+		this.process = process;
+		this.name = name;
+		this.owners = new AtomicInteger(owners);
+		Reaper.register(process);
+	}
+
+	InputStream stdout() {
+		return process.getInputStream();
+	}
+
+	private void release() {
+		if (owners.decrementAndGet() == 0) {
+			Reaper.reap(process, name);
+		}
+	}
+
+	InputStream own(InputStream in) {
+		return new FilterInputStream(in) {
+			private final AtomicBoolean closed = new AtomicBoolean();
+
+			@Override
+			public void close() throws IOException {
+				if (closed.getAndSet(true)) {
+					return;
+				}
+				try {
+					super.close();
+				} finally {
+					release();
+				}
+			}
+		};
+	}
+
+	ReadableByteChannel own(final ReadableByteChannel channel) {
+		if (channel instanceof NamedPipe.PipeChannel) {
+			// ffmpeg may fail before it opens the pipe
+			Reaper.onExit(process, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						((NamedPipe.PipeChannel) channel).abandon();
+					} catch (IOException exc) {
+						// closed anyway
+					}
+				}
+			});
+		}
+
+		return new ReadableByteChannel() {
+			private final AtomicBoolean closed = new AtomicBoolean();
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				return channel.read(dst);
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed.getAndSet(true)) {
+					return;
+				}
+				try {
+					channel.close();
+				} finally {
+					release();
+				}
+			}
+		};
+	}
+}
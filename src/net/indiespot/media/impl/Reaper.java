@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes sure ffmpeg processes and pump threads actually go away.
+ * 
+ * Processes are destroyed and threads interrupted right away, after which
+ * a single daemon thread waits for them to terminate. Whatever is still
+ * alive after the timeout is reported as leaked. Processes that are still
+ * running when the JVM shuts down are destroyed.
+ * 
+ * The same thread notices processes that exit by themselves, for those that
+ * are watched. Without Process.waitFor(timeout) in Java 7 that means
+ * polling: quickly after something was added, backing off to
+ * MAX_POLL_MILLIS while nothing changes.
+ */
+public class Reaper {
+	public static long TIMEOUT_MILLIS = 2500;
+	public static boolean REPORT_LEAKS = true;
+	public static long MAX_POLL_MILLIS = 250;
+	private static final long MIN_POLL_MILLIS = 10;
+
+	private static class Pending {
+		final Process process;
+		final Thread thread;
+		final String name;
+		final long deadline;
+		final Runnable onExit;
+
+		Pending(Process process, Thread thread, String name) {
+			this.process = process;
+			this.thread = thread;
+			this.name = name;
+			this.deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			this.onExit = null;
+		}
+
+		Pending(Process process, Runnable onExit) {
+			this.process = process;
+			this.thread = null;
+			this.name = null;
+			this.deadline = Long.MAX_VALUE;
+			this.onExit = onExit;
+		}
+
+		boolean isTerminated() {
+			if (thread != null) {
+				return !thread.isAlive();
+			}
+			try {
+				process.exitValue();
+				return true;
+			} catch (IllegalThreadStateException exc) {
+				return false;
+			}
+		}
+	}
+
+	private static final Set<Process> running = Collections.synchronizedSet(new HashSet<Process>());
+	private static final List<Pending> pending = new ArrayList<>();
+	private static int leaked;
+	private static Thread worker;
+	private static long pollMillis;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (running) {
+					for (Process process : running) {
+						process.destroy();
+					}
+				}
+			}
+		}, "reaper-shutdown"));
+	}
+
+	public static void register(Process process) {
+		running.add(process);
+	}
+
+	public static void reap(Process process, String name) {
+		process.destroy();
+		enqueue(new Pending(process, null, name));
+	}
+
+	public static void reap(Thread thread) {
+		thread.interrupt();
+		enqueue(new Pending(null, thread, thread.getName()));
+	}
+
+	/**
+	 * Runs the callback on the reaper thread, once the process has exited
+	 */
+	public static void onExit(Process process, Runnable callback) {
+		enqueue(new Pending(process, callback));
+	}
+
+	public static int runningProcesses() {
+		return running.size();
+	}
+
+	public static synchronized int leaked() {
+		return leaked;
+	}
+
+	private static synchronized void enqueue(Pending item) {
+		pending.add(item);
+		pollMillis = MIN_POLL_MILLIS;
+
+		if (worker == null) {
+			worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (Reaper.class) {
+						while (poll()) {
+							try {
+								Reaper.class.wait(pollMillis);
+							} catch (InterruptedException exc) {
+								break;
+							}
+							pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+						}
+					}
+				}
+			}, "reaper");
+			worker.setDaemon(true);
+			worker.start();
+		} else {
+			Reaper.class.notifyAll();
+		}
+	}
+
+	private static synchronized boolean poll() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Pending> it = pending.iterator(); it.hasNext();) {
+			Pending item = it.next();
+
+			if (item.isTerminated()) {
+				if (item.process != null) {
+					running.remove(item.process);
+				}
+				it.remove();
+
+				if (item.onExit != null) {
+					try {
+						item.onExit.run();
+					} catch (RuntimeException exc) {
+						exc.printStackTrace();
+					}
+				}
+			} else if (now > item.deadline) {
+				leaked++;
+				if (REPORT_LEAKS) {
+					System.err.println("Reaper: " + (item.process != null ? "process" : "thread") + " '" + item.name + "' did not terminate within " + TIMEOUT_MILLIS + "ms");
+				}
+				it.remove();
+			}
+		}
+
+		if (pending.isEmpty()) {
+			worker = null;
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.IOException;
+
+import net.indiespot.media.AudioRenderer;
+import net.indiespot.media.AudioStream;
+import net.indiespot.media.Movie;
+
+import craterstudio.math.EasyMath;
+
+/**
+ * Plays nothing: for movies without audio. There is no byte stream and no
+ * OpenAL source, the movie is driven by a monotonic clock instead, which
+ * stands still while paused.
+ */
+public class SilentAudioRenderer extends AudioRenderer {
+	private State state = State.INIT;
+	private long playedNanos; // before the last resume
+	private long resumedAt;
+	private boolean stopped; // not yet reported to the movie
+	private float volume = 1.0f;
+
+	@Override
+	public void init(AudioStream audioStream, float frameRate) throws IOException {
+		// no sample buffers, no prefetch
+		this.audioStream = audioStream;
+		this.frameRate = frameRate;
+	}
+
+	@Override
+	public synchronized State getState() {
+		return state;
+	}
+
+	@Override
+	public synchronized void pause() {
+		switch (state) {
+			case PLAYING:
+				playedNanos += System.nanoTime() - resumedAt;
+				state = State.PAUSED;
+				break;
+
+			case INIT:
+				// the clock will start when resumed
+				state = State.PAUSED;
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	@Override
+	public synchronized void resume() {
+		if (state == State.PAUSED) {
+			resumedAt = System.nanoTime();
+			state = State.PLAYING;
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (state == State.PLAYING) {
+			playedNanos += System.nanoTime() - resumedAt;
+		}
+		if (state != State.CLOSED) {
+			state = State.CLOSED;
+			stopped = true;
+		}
+	}
+
+	@Override
+	public float getVolume() {
+		return volume;
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		if (!EasyMath.isBetween(volume, 0.0f, 1.0f)) {
+			throw new IllegalArgumentException();
+		}
+		this.volume = volume;
+	}
+
+	/**
+	 * Nanoseconds played since the start of the stream
+	 */
+	public synchronized long getPlayedNanos() {
+		if (state == State.PLAYING) {
+			return playedNanos + (System.nanoTime() - resumedAt);
+		}
+		return playedNanos;
+	}
+
+	@Override
+	public boolean tick(Movie sync) {
+		synchronized (this) {
+			switch (state) {
+				case INIT:
+					resumedAt = System.nanoTime();
+					state = State.PLAYING;
+					break;
+
+				case CLOSED:
+					if (stopped) {
+						stopped = false;
+						sync.onEndOfAudio();
+					}
+					return false;
+
+				default:
+					break;
+			}
+		}
+
+		sync.onAudioClock(this.getPlayedNanos() / 1_000_000_000.0);
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			state = State.CLOSED;
+		}
+		super.close();
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small rgb24 previews at fixed intervals across a file, for scrubbing.
+ * Decoded once in the background into a single off-heap strip, which is
+ * persisted next to the metadata cache. Strips are taken from the
+ * DirectBufferPool, the least recently used are handed back beyond
+ * CACHE_BYTES.
+ */
+public class ThumbnailStrip {
+	private static final int MAGIC = 0x4C4D5431; // "LMT1"
+
+	public static double INTERVAL = 5.0;
+	public static int WIDTH = 160;
+	public static int MAX_BYTES = 32 * 1024 * 1024;
+	public static long CACHE_BYTES = 64L * 1024 * 1024;
+
+	public final double interval;
+	public final int width, height;
+	private final int count;
+	private final int thumbnailSize;
+	private final ByteBuffer strip;
+	private volatile int decoded;
+	private volatile boolean complete;
+	private boolean disposed;
+
+	private ThumbnailStrip(double interval, int width, int height, int count, ByteBuffer strip) {
+		this.interval = interval;
+		this.width = width;
+		this.height = height;
+		this.count = count;
+		this.thumbnailSize = FrameFormat.RGB24.frameSize(width, height);
+		this.strip = strip;
+	}
+
+	/**
+	 * Returns null when the budget of the pool is exhausted, rather than
+	 * waiting, if so specified
+	 */
+	private static ThumbnailStrip allocate(double interval, int width, int height, int count, boolean wait) throws IOException {
+		int size = FrameFormat.RGB24.frameSize(width, height) * count;
+		ByteBuffer strip = wait ? DirectBufferPool.acquire(size) : DirectBufferPool.tryAcquire(size);
+		return (strip == null) ? null : new ThumbnailStrip(interval, width, height, count, strip);
+	}
+
+	private long bytes() {
+		return strip.capacity();
+	}
+
+	private synchronized void dispose() {
+		if (!disposed) {
+			disposed = true;
+			DirectBufferPool.release(strip);
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Number of thumbnails available so far, while the strip is being built
+	 */
+	public int decoded() {
+		return decoded;
+	}
+
+	/**
+	 * Copies the rgb24 pixels of the thumbnail nearest to the specified time
+	 * into the target. Returns false if it was not decoded yet, or if the
+	 * strip was dropped from the cache in the meantime.
+	 */
+	public synchronized boolean thumbnail(double seconds, ByteBuffer target) {
+		int index = (int) Math.round(seconds / interval);
+		index = Math.max(0, Math.min(count - 1, index));
+		if (index >= decoded) {
+			if (!complete || decoded == 0) {
+				return false;
+			}
+			index = decoded - 1; // the file ended before the last interval
+		}
+		if (disposed) {
+			return false; // the pool may have handed out the memory again
+		}
+
+		ByteBuffer view = strip.duplicate();
+		view.limit((index + 1) * thumbnailSize);
+		view.position(index * thumbnailSize);
+		target.put(view);
+		return true;
+	}
+
+	private void fill(ReadableByteChannel channel) throws IOException {
+		ByteBuffer target = strip.duplicate();
+		target.clear();
+
+		while (decoded < count) {
+			target.limit((decoded + 1) * thumbnailSize);
+			while (target.hasRemaining()) {
+				if (channel.read(target) == -1) {
+					complete = true;
+					return;
+				}
+			}
+			decoded++;
+		}
+		complete = true;
+	}
+
+	private static ThumbnailStrip create(VideoMetadata metadata) throws IOException {
+		if (metadata.duration <= 0.0) {
+			return null;
+		}
+
+		int width = Math.min(WIDTH, metadata.width) & ~1;
+		int height = Math.max(2, Math.round(width * metadata.height / (float) metadata.width) & ~1);
+
+		// long files get sparser thumbnails, rather than a bigger strip
+		int bytesPerThumbnail = FrameFormat.RGB24.frameSize(width, height);
+		double interval = Math.max(INTERVAL, metadata.duration / (MAX_BYTES / bytesPerThumbnail));
+		int count = Math.max(1, (int) Math.ceil(metadata.duration / interval));
+		return allocate(interval, width, height, count, true);
+	}
+
+	//
+
+	private static final Map<String, ThumbnailStrip> loaded = new LinkedHashMap<>(16, 0.75f, true);
+	// null until the strip is allocated
+	private static final Map<String, ThumbnailStrip> building = new HashMap<>();
+	private static long loadedBytes;
+
+	private static void cache(String path, ThumbnailStrip strip) {
+		synchronized (loaded) {
+			loaded.put(path, strip);
+			loadedBytes += strip.bytes();
+
+			// least recently used first
+			Iterator<Map.Entry<String, ThumbnailStrip>> it = loaded.entrySet().iterator();
+			while (loadedBytes > CACHE_BYTES && it.hasNext()) {
+				Map.Entry<String, ThumbnailStrip> entry = it.next();
+				if (entry.getValue() != strip) {
+					it.remove();
+					loadedBytes -= entry.getValue().bytes();
+					entry.getValue().dispose();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the strip if it is available or being built, never blocks
+	 */
+	public static ThumbnailStrip peek(File movieFile) throws IOException {
+		String path = movieFile.getCanonicalPath();
+		synchronized (loaded) {
+			if (building.containsKey(path)) {
+				return building.get(path);
+			}
+			ThumbnailStrip strip = loaded.get(path);
+			if (strip == null) {
+				strip = load(movieFile, path);
+				if (strip != null) {
+					cache(path, strip);
+				}
+			}
+			return strip;
+		}
+	}
+
+	/**
+	 * Starts building the strip in the background, if it is not available.
+	 * Thumbnails can be looked up while it is being built.
+	 */
+	public static void request(final File movieFile) throws IOException {
+		final String path = movieFile.getCanonicalPath();
+		synchronized (loaded) {
+			if (peek(movieFile) != null || building.containsKey(path)) {
+				return;
+			}
+			building.put(path, null);
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ThumbnailStrip strip = null;
+				boolean built = false;
+				try {
+					strip = create(MetadataCache.get(movieFile));
+					if (strip == null) {
+						return;
+					}
+					synchronized (loaded) {
+						building.put(path, strip);
+					}
+
+					InputStream in = FFmpeg.extractThumbnails(movieFile, strip.interval, strip.width, strip.height);
+					try {
+						strip.fill(Channels.newChannel(in));
+					} finally {
+						in.close();
+					}
+					if (strip.decoded == 0) {
+						throw new IOException("no thumbnails decoded");
+					}
+					save(movieFile, path, strip);
+					built = true;
+				} catch (IOException | RuntimeException exc) {
+					System.err.println("ThumbnailStrip: failed to decode " + path + ": " + exc);
+				} finally {
+					// a failed strip is not cached, the next request tries again
+					synchronized (loaded) {
+						building.remove(path);
+						if (built) {
+							cache(path, strip);
+						}
+					}
+					if (!built && strip != null) {
+						strip.dispose();
+					}
+				}
+			}
+		}, "thumbnail-strip");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	//
+
+	private static File stripFile(String path) {
+		return new File(new File(MetadataCache.CACHE_DIR, "thumbnails"), MetadataCache.cacheKey(path) + ".strip");
+	}
+
+	private static ThumbnailStrip load(File movieFile, String path) {
+		File file = stripFile(path);
+		if (!MetadataCache.PERSISTENT || !file.exists()) {
+			return null;
+		}
+
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			ThumbnailStrip strip = null;
+			try {
+				DataInputStream in = new DataInputStream(fis);
+				if (in.readInt() != MAGIC || !in.readUTF().equals(path)) {
+					return null;
+				}
+				if (in.readLong() != movieFile.length() || in.readLong() != movieFile.lastModified()) {
+					return null; // stale
+				}
+
+				// never waits for the budget, this runs on the caller of peek()
+				strip = allocate(in.readDouble(), in.readInt(), in.readInt(), in.readInt(), false);
+				if (strip == null) {
+					return null;
+				}
+				int decoded = in.readInt();
+
+				// the header was read unbuffered, the pixels go straight off-heap
+				ByteBuffer target = strip.strip.duplicate();
+				target.limit(decoded * strip.thumbnailSize);
+				while (target.hasRemaining()) {
+					if (fis.getChannel().read(target) == -1) {
+						throw new EOFException();
+					}
+				}
+				strip.decoded = decoded;
+				strip.complete = true;
+				return strip;
+			} catch (IOException exc) {
+				if (strip != null) {
+					strip.dispose();
+				}
+				throw exc;
+			} finally {
+				fis.close();
+			}
+		} catch (IOException exc) {
+			return null;
+		}
+	}
+
+	private static void save(File movieFile, String path, ThumbnailStrip strip) throws IOException {
+		if (!MetadataCache.PERSISTENT) {
+			return;
+		}
+
+		File file = stripFile(path);
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("failed to create dir: " + dir.getAbsolutePath());
+		}
+
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(MAGIC);
+			out.writeUTF(path);
+			out.writeLong(movieFile.length());
+			out.writeLong(movieFile.lastModified());
+			out.writeDouble(strip.interval);
+			out.writeInt(strip.width);
+			out.writeInt(strip.height);
+			out.writeInt(strip.count);
+			out.writeInt(strip.decoded);
+			out.flush();
+
+			ByteBuffer pixels = strip.strip.duplicate();
+			pixels.position(0);
+			pixels.limit(strip.decoded * strip.thumbnailSize);
+			while (pixels.hasRemaining()) {
+				fos.getChannel().write(pixels);
+			}
+		} finally {
+			fos.close();
+		}
+	}
+}
@@ -33,15 +33,62 @@ package net.indiespot.media.impl;
 public class VideoMetadata {
 	public final int width, height;
 	public final float framerate;
+	public final boolean hasAudio;
+
+	// -1 or null when unknown
+	public final double duration;
+	public final long frameCount;
+	public final String pixelFormat;
+	public final int audioSampleRate;
+	public final int audioChannels;
 
 	public VideoMetadata(int width, int height, float framerate) {
+		this(width, height, framerate, true);
+	}
+
+	public VideoMetadata(int width, int height, float framerate, boolean hasAudio) {
+		this(width, height, framerate, -1.0, null, hasAudio ? -1 : 0, hasAudio ? -1 : 0);
+	}
+
+	public VideoMetadata(int width, int height, float framerate, double duration, String pixelFormat, int audioSampleRate, int audioChannels) {
 		this.width = width;
 		this.height = height;
 		this.framerate = framerate;
+		this.duration = duration;
+		this.frameCount = (duration < 0.0) ? -1L : Math.round(duration * framerate);
+		this.pixelFormat = pixelFormat;
+		this.audioSampleRate = audioSampleRate;
+		this.audioChannels = audioChannels;
+		this.hasAudio = (audioChannels != 0);
+	}
+
+	/**
+	 * The same stream, decoded to fit within the specified size with the
+	 * aspect ratio intact. Never scales up, 0 means unbounded.
+	 */
+	public VideoMetadata scaledToFit(int maxWidth, int maxHeight) {
+		double scale = 1.0;
+		if (maxWidth > 0) {
+			scale = Math.min(scale, maxWidth / (double) width);
+		}
+		if (maxHeight > 0) {
+			scale = Math.min(scale, maxHeight / (double) height);
+		}
+		if (scale >= 1.0) {
+			return this;
+		}
+
+		// even dimensions, for the chroma planes of yuv420p
+		int w = Math.max(2, (int) (width * scale) & ~1);
+		int h = Math.max(2, (int) (height * scale) & ~1);
+		return new VideoMetadata(w, h, framerate, duration, pixelFormat, audioSampleRate, audioChannels);
 	}
 
 	@Override
 	public String toString() {
-		return "VideoMetadata[" + width + "x" + height + " @ " + framerate + "fps]";
+		return "VideoMetadata[" + width + "x" + height + " @ " + framerate + "fps" + //
+		   (pixelFormat == null ? "" : ", " + pixelFormat) + //
+		   (duration < 0.0 ? "" : ", " + duration + "sec") + //
+		   (hasAudio ? (audioSampleRate > 0 ? ", " + audioSampleRate + "Hz x " + audioChannels : "") : ", no audio") + "]";
 	}
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a YUV4MPEG2 stream: the stream header describes the video, and the
+ * FRAME markers are stripped, so that only raw yuv420p planes remain.
+ */
+public class Y4MChannel implements ReadableByteChannel {
+	private static final String STREAM_MAGIC = "YUV4MPEG2";
+	private static final String FRAME_MAGIC = "FRAME";
+
+	public static Y4MChannel open(ReadableByteChannel channel) throws IOException {
+		try {
+			String header = readLine(channel);
+			if (header == null) {
+				throw new EOFException("no YUV4MPEG2 stream header");
+			}
+			return new Y4MChannel(channel, parseHeader(header));
+		} catch (IOException | RuntimeException exc) {
+			channel.close();
+			throw exc;
+		}
+	}
+
+	static VideoMetadata parseHeader(String header) throws IOException {
+		String[] params = header.split(" ");
+		if (!params[0].equals(STREAM_MAGIC)) {
+			throw new IOException("not a YUV4MPEG2 stream: " + header);
+		}
+
+		int width = -1;
+		int height = -1;
+		float framerate = -1;
+		for (int i = 1; i < params.length; i++) {
+			String value = params[i].substring(1);
+			switch (params[i].charAt(0)) {
+				case 'W':
+					width = Integer.parseInt(value);
+					break;
+				case 'H':
+					height = Integer.parseInt(value);
+					break;
+				case 'F':
+					// exact rational, e.g. 30000:1001
+					String[] ratio = value.split(":");
+					framerate = (float) (Double.parseDouble(ratio[0]) / Double.parseDouble(ratio[1]));
+					break;
+				case 'C':
+					if (!value.startsWith("420")) {
+						throw new IOException("unsupported YUV4MPEG2 colorspace: " + value);
+					}
+					break;
+				default:
+					// interlacing, aspect ratio, extensions
+					break;
+			}
+		}
+
+		if (width <= 0 || height <= 0 || framerate <= 0) {
+			throw new IOException("incomplete YUV4MPEG2 stream header: " + header);
+		}
+		return new VideoMetadata(width, height, framerate);
+	}
+
+	//
+
+	private final ReadableByteChannel channel;
+	private final VideoMetadata metadata;
+	private final int frameSize;
+	private final ByteBuffer marker;
+	private int frameRemaining;
+
+	private Y4MChannel(ReadableByteChannel channel, VideoMetadata metadata) {
+		this.channel = channel;
+		this.metadata = metadata;
+		this.frameSize = FrameFormat.YUV420P.frameSize(metadata.width, metadata.height);
+		this.marker = ByteBuffer.allocate(FRAME_MAGIC.length() + 1);
+	}
+
+	public VideoMetadata metadata() {
+		return metadata;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (frameRemaining == 0) {
+			if (!this.readFrameMarker()) {
+				return -1;
+			}
+			frameRemaining = frameSize;
+		}
+
+		int limit = dst.limit();
+		dst.limit(dst.position() + Math.min(dst.remaining(), frameRemaining));
+		try {
+			int got = channel.read(dst);
+			if (got > 0) {
+				frameRemaining -= got;
+			}
+			return got;
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	private boolean readFrameMarker() throws IOException {
+		// "FRAME\n" in the common case, a single read
+		marker.clear();
+		while (marker.hasRemaining()) {
+			if (channel.read(marker) == -1) {
+				if (marker.position() == 0) {
+					return false;
+				}
+				throw new EOFException("truncated YUV4MPEG2 frame marker");
+			}
+		}
+
+		for (int i = 0; i < FRAME_MAGIC.length(); i++) {
+			if (marker.get(i) != FRAME_MAGIC.charAt(i)) {
+				throw new IOException("corrupt YUV4MPEG2 frame marker");
+			}
+		}
+
+		if (marker.get(FRAME_MAGIC.length()) != '\n') {
+			// skip frame parameters
+			if (readLine(channel) == null) {
+				throw new EOFException("truncated YUV4MPEG2 frame marker");
+			}
+		}
+		return true;
+	}
+
+	private static String readLine(ReadableByteChannel channel) throws IOException {
+		ByteBuffer one = ByteBuffer.allocate(1);
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			one.clear();
+			if (channel.read(one) == -1) {
+				return (sb.length() == 0) ? null : sb.toString();
+			}
+			if (one.position() == 0) {
+				continue;
+			}
+			char c = (char) (one.get(0) & 0xFF);
+			if (c == '\n') {
+				return sb.toString();
+			}
+			sb.append(c);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012, Riven
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of Riven nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.indiespot.media.impl;
+
+import static org.lwjgl.opengl.GL11.GL_FALSE;
+import static org.lwjgl.opengl.GL20.*;
+
+import org.lwjgl.opengl.GLContext;
+
+public class YUVShader {
+
+	/*
+	 * BT.601 (studio swing) YUV -> RGB, the vertex stage is left to the fixed
+	 * function pipeline, so gl_TexCoord[0] and gl_Color behave as usual
+	 */
+	private static final String FRAGMENT_SHADER = "" + //
+	   "uniform sampler2D texY;\n" + //
+	   "uniform sampler2D texU;\n" + //
+	   "uniform sampler2D texV;\n" + //
+	   "\n" + //
+	   "void main() {\n" + //
+	   "   vec2 tc = gl_TexCoord[0].st;\n" + //
+	   "   float y = 1.1643 * (texture2D(texY, tc).r - 0.0625);\n" + //
+	   "   float u = texture2D(texU, tc).r - 0.5;\n" + //
+	   "   float v = texture2D(texV, tc).r - 0.5;\n" + //
+	   "\n" + //
+	   "   vec3 rgb = vec3(y + 1.5958 * v, y - 0.39173 * u - 0.81290 * v, y + 2.017 * u);\n" + //
+	   "   gl_FragColor = vec4(rgb, 1.0) * gl_Color;\n" + //
+	   "}\n";
+
+	public static boolean isSupported() {
+		return GLContext.getCapabilities().OpenGL20;
+	}
+
+	/**
+	 * Returns the program handle, or 0 if the shader failed to compile or link
+	 */
+	public static int createProgram() {
+		int shader = glCreateShader(GL_FRAGMENT_SHADER);
+		glShaderSource(shader, FRAGMENT_SHADER);
+		glCompileShader(shader);
+		if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE) {
+			System.err.println("YUVShader: " + glGetShaderInfoLog(shader, 4096));
+			glDeleteShader(shader);
+			return 0;
+		}
+
+		int program = glCreateProgram();
+		glAttachShader(program, shader);
+		glLinkProgram(program);
+		glDeleteShader(shader); // flagged, freed along with the program
+
+		if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+			System.err.println("YUVShader: " + glGetProgramInfoLog(program, 4096));
+			glDeleteProgram(program);
+			return 0;
+		}
+
+		glUseProgram(program);
+		glUniform1i(glGetUniformLocation(program, "texY"), 0);
+		glUniform1i(glGetUniformLocation(program, "texU"), 1);
+		glUniform1i(glGetUniformLocation(program, "texV"), 2);
+		glUseProgram(0);
+
+		return program;
+	}
+}
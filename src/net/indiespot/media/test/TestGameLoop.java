@@ -72,7 +72,7 @@ public class TestGameLoop {
 			}
 		}
 
-		MoviePlayer player = new MoviePlayer(movieFile);
+		MoviePlayer player = new MoviePlayer(movieFile, true);
 
 		// game loop
 
@@ -89,6 +89,9 @@ public class TestGameLoop {
 				// setup projection matrix
 				displayWidth = Display.getWidth();
 				displayHeight = Display.getHeight();
+
+				// no need to decode more pixels than fit the window
+				player.setOutputSize(displayWidth, displayHeight);
 				{
 					glViewport(0, 0, displayWidth, displayHeight);
 				}
@@ -110,6 +113,10 @@ public class TestGameLoop {
 							player.relativeSeek(-10);
 						} else if (Keyboard.getEventKey() == Keyboard.KEY_RIGHT) {
 							player.relativeSeek(+10);
+						} else if (Keyboard.getEventKey() == Keyboard.KEY_COMMA) {
+							player.stepBackward();
+						} else if (Keyboard.getEventKey() == Keyboard.KEY_PERIOD) {
+							player.stepForward();
 						}
 					}
 				}
@@ -251,6 +258,7 @@ public class TestGameLoop {
 				}
 				glDisable(GL_BLEND);
 				glDisable(GL_TEXTURE_2D);
+				player.unbindTexture();
 
 				glPopMatrix();
 			}